@@ -0,0 +1,56 @@
+package com.tangzhixiong.md2html;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+// indexing the source tree (fillBundle) and listing it (getFiles, listing)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleBenchmark {
+    @Param({"1000", "20000"})
+    public int files;
+
+    private File root;
+    private String src;
+    private String dst;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Config.watchBackend = "poll"; // the walk, not inotify
+        root = Files.createTempDirectory("md2html-tree-").toFile();
+        Corpus.tree(root, files);
+        src = root.getCanonicalPath();
+        dst = src+"-publish";
+        Bundle.fillBundle(src, dst);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public int fillBundle() throws Exception {
+        Bundle.fillBundle(src, dst);
+        return Bundle.src2dst.size();
+    }
+
+    @Benchmark
+    public Vector<String> getFiles() {
+        return Bundle.getFiles();
+    }
+
+    @Benchmark
+    public List<String> listing() {
+        return Utility.listing();
+    }
+}
@@ -0,0 +1,101 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// synthetic inputs for the benchmarks, generated under java.io.tmpdir
+public class Corpus {
+    // include graph shapes for expandLines:
+    //      flat: index includes n fragments
+    //      deep: index includes f1, f1 includes f2, ... fn
+    //      wide: index includes n fragments, each of them includes the same n leaves
+    public static File includeGraph(String shape, int n, int linesPerFile) throws IOException {
+        File root = Files.createTempDirectory("md2html-"+shape+"-").toFile();
+        ArrayList<String> index = paragraph("index", linesPerFile);
+        if (shape.equals("flat")) {
+            for (int k = 0; k < n; ++k) {
+                index.add("    @include <-=f"+k+".md=");
+                write(new File(root, "f"+k+".md"), paragraph("f"+k, linesPerFile));
+            }
+        } else if (shape.equals("deep")) {
+            index.add("@include <-=f0.md=");
+            for (int k = 0; k < n; ++k) {
+                ArrayList<String> lines = paragraph("f"+k, linesPerFile);
+                if (k+1 < n) {
+                    lines.add("    @include <-=f"+(k+1)+".md=");
+                }
+                write(new File(root, "f"+k+".md"), lines);
+            }
+        } else if (shape.equals("wide")) {
+            for (int k = 0; k < n; ++k) {
+                index.add("@include <-=f"+k+".md=");
+                ArrayList<String> lines = paragraph("f"+k, linesPerFile);
+                for (int j = 0; j < n; ++j) {
+                    lines.add("  @include <-=leaf"+j+".md=");
+                }
+                write(new File(root, "f"+k+".md"), lines);
+            }
+            for (int j = 0; j < n; ++j) {
+                write(new File(root, "leaf"+j+".md"), paragraph("leaf"+j, linesPerFile));
+            }
+        } else {
+            throw new IllegalArgumentException(shape);
+        }
+        write(new File(root, "index.md"), index);
+        return root;
+    }
+
+    // a source tree: 'files' small markdown files, 20 per directory, directories 3 levels deep.
+    // returns the number of directories
+    public static int tree(File root, int files) throws IOException {
+        int dirs = 0;
+        for (int k = 0; k < files; ++k) {
+            int d = k / 20;
+            File dir = new File(root, String.format("d%d/d%d/d%d", d % 10, (d / 10) % 10, d / 100));
+            if (!dir.isDirectory() && dir.mkdirs()) { ++dirs; }
+            Files.write(new File(dir, "f"+k+".md").toPath(), ("# file "+k+"\n").getBytes());
+        }
+        return dirs;
+    }
+
+    // markdown as md2html users write it: prose, lists, code, some fold markers and include lines
+    public static ArrayList<String> document(int lines) {
+        ArrayList<String> doc = new ArrayList<>(lines);
+        for (int k = 0; doc.size() < lines; ++k) {
+            switch (k % 8) {
+                case 0: doc.add("## Section "+k); break;
+                case 1: doc.add("Some text with `code`, a [link](http://example.com/"+k+") and *emphasis*."); break;
+                case 2: doc.add("-   drawer title "+k+" -<"); break;
+                case 3: doc.add("    :   folded content of item "+k); break;
+                case 4: doc.add("-   another drawer "+k+" +<"); break;
+                case 5: doc.add("    @include <-=fragment"+k+".md="); break;
+                case 6: doc.add("中文内容，用来测试 east_asian_line_breaks 之类的东西。"); break;
+                default: doc.add(""); break;
+            }
+        }
+        return doc;
+    }
+
+    static ArrayList<String> paragraph(String name, int lines) {
+        ArrayList<String> paragraph = new ArrayList<>(lines);
+        for (int k = 0; k < lines; ++k) {
+            paragraph.add(name+": line "+k+" of some markdown text, with `code` and *emphasis*.");
+        }
+        return paragraph;
+    }
+
+    static void write(File file, List<String> lines) throws IOException {
+        Files.write(file.toPath(), lines, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    static void delete(File file) {
+        File[] entries = file.listFiles();
+        if (entries != null) {
+            for (File entry: entries) { delete(entry); }
+        }
+        file.delete();
+    }
+}
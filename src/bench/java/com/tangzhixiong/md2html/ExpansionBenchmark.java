@@ -0,0 +1,68 @@
+package com.tangzhixiong.md2html;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// include expansion over flat, deep and wide include graphs, with and without ExpansionCache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpansionBenchmark {
+    @Param({"flat", "deep", "wide"})
+    public String shape;
+
+    @Param({"20"})
+    public int includes;
+
+    @Param({"50"})
+    public int linesPerFile;
+
+    @Param({"true", "false"})
+    public boolean cache;
+
+    private File root;
+    private String index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Config.expandMarkdown = true;
+        Config.expansionCacheLines = cache ? 1 << 20 : 0;
+        root = Corpus.includeGraph(shape, includes, linesPerFile);
+        index = new File(root, "index.md").getCanonicalPath();
+        ExpansionCache.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ExpansionCache.clear();
+        Bundle.inclusionLogs.clear();
+        Corpus.delete(root);
+    }
+
+    @Benchmark
+    public List<String> expandLines() {
+        List<String> lines = Utility.expandLines(index, new InclusionParams());
+        Bundle.inclusionLogs.clear(); // grows with every expansion otherwise
+        return lines;
+    }
+
+    @Benchmark
+    public int expandLinesStreaming(final Blackhole bh) throws IOException {
+        int count = Utility.expandLines(index, new InclusionParams(), true, new LineSink() {
+            @Override
+            public void line(String line) {
+                bh.consume(line);
+            }
+        });
+        Bundle.inclusionLogs.clear();
+        return count;
+    }
+}
@@ -0,0 +1,66 @@
+package com.tangzhixiong.md2html;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// per-line work on the output path: include detection, reading, and writing (with '-f' folding)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineBenchmark {
+    @Param({"10000"})
+    public int lines;
+
+    private List<String> document;
+    private File input;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        document = Corpus.document(lines);
+        input = File.createTempFile("md2html-lines-", ".md");
+        output = File.createTempFile("md2html-dump-", ".md");
+        Corpus.write(input, document);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+        output.delete();
+        Config.foldMarkdown = false;
+    }
+
+    @Benchmark
+    public void canExpandLine(Blackhole bh) {
+        for (String line: document) {
+            bh.consume(Utility.canExpandLine(line, new InclusionParams()));
+        }
+    }
+
+    @Benchmark
+    public List<String> getLinesNaive() {
+        return Utility.getLinesNaive(input.getPath());
+    }
+
+    @Benchmark
+    public long dump() {
+        Config.foldMarkdown = false;
+        Utility.dump(document, output, true);
+        return output.length();
+    }
+
+    @Benchmark
+    public long dumpFold() {
+        Config.foldMarkdown = true;
+        Utility.dump(document, output, true);
+        return output.length();
+    }
+}
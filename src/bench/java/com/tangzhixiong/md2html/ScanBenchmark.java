@@ -0,0 +1,67 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+// time to index a source tree (Bundle.addDirectory) against the size of the tree, next to the
+// old single-threaded listFiles()/getCanonicalPath() walk. trees are generated under java.io.tmpdir.
+//
+//      $ mvn -P bench package
+//      $ java -cp target/classes:target/bench-classes:$(cat target/bench.classpath) \
+//              com.tangzhixiong.md2html.ScanBenchmark [files...]
+public class ScanBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1000, 10000, 50000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int k = 0; k < args.length; ++k) { sizes[k] = Integer.parseInt(args[k]); }
+        }
+        Config.watchBackend = "poll"; // measure the walk, not inotify
+        System.out.printf("%10s %10s %12s %12s\n", "files", "dirs", "legacy (ms)", "nio (ms)");
+        for (int size: sizes) {
+            File root = Files.createTempDirectory("md2html-scan-").toFile();
+            int dirs = Corpus.tree(root, size);
+            Bundle.fillBundle(root.getCanonicalPath(), root.getCanonicalPath()+"-publish");
+            long legacy = Long.MAX_VALUE, nio = Long.MAX_VALUE;
+            for (int round = 0; round < 5; ++round) {
+                long start = System.nanoTime();
+                int found = legacyScan(root);
+                legacy = Math.min(legacy, System.nanoTime() - start);
+
+                Bundle.fillBundle(root.getCanonicalPath(), root.getCanonicalPath()+"-publish");
+                start = System.nanoTime();
+                Bundle.addDirectory(root);
+                nio = Math.min(nio, System.nanoTime() - start);
+                if (found != Bundle.src2dst.size()) {
+                    throw new IllegalStateException(found+" != "+Bundle.src2dst.size());
+                }
+            }
+            System.out.printf("%10d %10d %12.1f %12.1f\n", size, dirs, legacy/1e6, nio/1e6);
+            Corpus.delete(root);
+        }
+        System.exit(0);
+    }
+
+    // what fillBundle did before: BFS, listFiles(), getCanonicalPath() on every entry
+    static int legacyScan(File root) throws IOException {
+        HashMap<String, String> src2dst = new HashMap<>();
+        ArrayDeque<File> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            File[] entries = queue.poll().listFiles();
+            if (entries == null) { continue; }
+            for (File entry: entries) {
+                String entryCanoPath = entry.getCanonicalPath();
+                if (entry.isFile()) {
+                    src2dst.put(entryCanoPath, entryCanoPath);
+                } else if (entry.isDirectory() && !entry.getName().startsWith(".")) {
+                    queue.add(entry);
+                }
+            }
+        }
+        return src2dst.size();
+    }
+}
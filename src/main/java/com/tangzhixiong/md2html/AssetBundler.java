@@ -0,0 +1,306 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// '-bundle': one request per group instead of one per file. the local stylesheets and scripts of the
+// merged config are concatenated, minified, and written to _md2html under content-hashed names:
+//
+//      mh-css-before + mh-css      ->  mh-css:         bundle.3f9a1c2b.css
+//      mh-css-after (local-css)    ->  mh-css-after:   bundle-after.5e0d7a41.css
+//      mh-js-before + mh-js        ->  mh-js:          bundle.9b2c44f0.js
+//      mh-js-after (local-js)      ->  mh-js-after:    bundle-after.c07e1d93.js
+//
+// the groups keep their places between the cdn entries, so the order of the page's styles and
+// scripts doesn't change. a group with a file that can't be read is left as it is.
+//
+// '-inline-css <KB>': a first stylesheet bundle no bigger than that goes into the page (<style>,
+// template variable mh-css-inline) instead of being linked.
+//
+// minifying is careful, not clever: css loses comments and whitespace (strings are kept as they
+// are); js only loses indentation, blank lines and lines that are nothing but a '//' comment, and
+// *.min.js files are taken as they are.
+public class AssetBundler {
+    private static final int hashLength = 8;
+    private static final Pattern bundleName = Pattern.compile("^bundle(-after)?\\.[0-9a-f]{"+hashLength+"}\\.(css|js)$");
+    private static final Pattern urlPattern = Pattern.compile("url\\(\\s*['\"]?([^'\")]*)");
+
+    // bundled keys -> the key the bundle goes under
+    private static final String[][] groups = {
+            {"mh-css", "mh-css-before", "mh-css"},
+            {"mh-css-after", "mh-css-after"},
+            {"mh-js", "mh-js-before", "mh-js"},
+            {"mh-js-after", "mh-js-after"},
+    };
+
+    private static final Set<String> bundles = new HashSet<>();
+    private static String inlineCss = null;
+
+    // config lines (with hashed names already) -> config lines pointing to the bundles; without
+    // '-bundle' the lines stay as they are (and bundles of earlier builds go)
+    public static synchronized List<String> bundle(List<String> lines) {
+        bundles.clear();
+        inlineCss = null;
+        if (!Config.bundleAssets) {
+            prune();
+            return lines;
+        }
+        LinkedHashMap<String, List<String>> lists = lists(lines);
+        ArrayList<String> dropped = new ArrayList<>();
+        LinkedHashMap<String, String> added = new LinkedHashMap<>();
+        for (String[] group: groups) {
+            String key = group[0];
+            String ext = key.startsWith("mh-css") ? "css" : "js";
+            List<String> names = new ArrayList<>();
+            boolean bundleable = true;
+            for (int k = 1; k < group.length; ++k) {
+                List<String> list = lists.get(group[k]);
+                if (list == null) {
+                    continue;
+                }
+                if (list.contains(null)) {
+                    bundleable = false; // not a plain list
+                    break;
+                }
+                names.addAll(list);
+            }
+            if (!bundleable || names.isEmpty()) {
+                continue;
+            }
+            byte[] bytes;
+            try {
+                bytes = ext.equals("css") ? concatCss(names) : concatJs(names);
+            } catch (IOException e) {
+                Utility.log("[X] Not bundling %s: %s\n", key, e.getMessage());
+                continue;
+            }
+            dropped.addAll(Arrays.asList(group).subList(1, group.length));
+            String css = new String(bytes, StandardCharsets.UTF_8);
+            if (key.equals("mh-css") && bytes.length <= Config.inlineCssBytes
+                    && !css.contains("</") && !urlPattern.matcher(css).find()) {
+                inlineCss = css;
+                continue;
+            }
+            String hash = BuildManifest.hashBytes(bytes).substring(0, hashLength);
+            String name = (key.endsWith("-after") ? "bundle-after." : "bundle.")+hash+"."+ext;
+            Utility.writeIfChanged(new File(Bundle.resourcePath+File.separator+name), bytes);
+            bundles.add(name);
+            added.put(key, name);
+            if (Config.verboseMode) {
+                System.out.printf("[L] Bundled %d file(s) into %s (%d bytes)\n", names.size(), name, bytes.length);
+            }
+        }
+        prune();
+        return rewrite(lines, dropped, added);
+    }
+
+    // template variables for every page
+    public static synchronized String getInlineCss() {
+        return inlineCss;
+    }
+
+    public static synchronized boolean isBundle(String name) {
+        return bundles.contains(name);
+    }
+
+    // key -> its list items, the last block of a key wins (as in YamlLite); null items for values
+    // that aren't a list (a flow list, a scalar), which aren't bundled
+    private static LinkedHashMap<String, List<String>> lists(List<String> lines) {
+        LinkedHashMap<String, List<String>> lists = new LinkedHashMap<>();
+        List<String> list = null;
+        for (String line: lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            if (Character.isWhitespace(line.charAt(0))) {
+                if (list != null && trimmed.startsWith("- ")) {
+                    list.add(trimmed.substring(2).trim());
+                }
+                continue;
+            }
+            int idx = line.indexOf(':');
+            if (idx <= 0) {
+                list = null;
+                continue;
+            }
+            list = new ArrayList<>();
+            lists.put(line.substring(0, idx).trim(), list);
+            if (!line.substring(idx+1).trim().isEmpty()) {
+                list.add(null);
+                list = null;
+            }
+        }
+        return lists;
+    }
+
+    // the dropped keys' blocks out, the bundles in (before the closing '---')
+    private static List<String> rewrite(List<String> lines, List<String> dropped, Map<String, String> added) {
+        ArrayList<String> rewritten = new ArrayList<>(lines.size());
+        boolean skipping = false;
+        for (String line: lines) {
+            boolean indented = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+            if (!indented && !line.trim().isEmpty() && !line.startsWith("#")) {
+                int idx = line.indexOf(':');
+                skipping = idx > 0 && dropped.contains(line.substring(0, idx).trim());
+            }
+            if (!skipping) {
+                rewritten.add(line);
+            }
+        }
+        int end = rewritten.size();
+        if (end > 1 && rewritten.get(end-1).trim().equals("---")) {
+            --end;
+        }
+        ArrayList<String> bundleLines = new ArrayList<>();
+        for (Map.Entry<String, String> entry: added.entrySet()) {
+            bundleLines.add(entry.getKey()+":");
+            bundleLines.add("  - "+entry.getValue());
+        }
+        rewritten.addAll(end, bundleLines);
+        return rewritten;
+    }
+
+    private static byte[] concatCss(List<String> names) throws IOException {
+        StringBuilder css = new StringBuilder();
+        for (int k = 0; k < names.size(); ++k) {
+            String text = read(names.get(k));
+            if (k > 0 && text.contains("@import")) {
+                throw new IOException(names.get(k)+": @import must stay at the top of its stylesheet");
+            }
+            String dir = names.get(k).contains("/") ? names.get(k).substring(0, names.get(k).lastIndexOf('/')+1) : "";
+            css.append(minifyCss(rebase(text, dir))).append('\n');
+        }
+        return css.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concatJs(List<String> names) throws IOException {
+        StringBuilder js = new StringBuilder();
+        for (String name: names) {
+            String text = read(name);
+            js.append(name.endsWith(".min.js") ? text : minifyJs(text));
+            // a file without a trailing ';' mustn't run into the next one
+            js.append("\n;\n");
+        }
+        return js.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // from _md2html, where the -res directory already went
+    private static String read(String name) throws IOException {
+        File file = new File(Bundle.resourcePath+File.separator+name.replace('/', File.separatorChar));
+        if (!file.isFile()) {
+            throw new IOException("no such file: "+file);
+        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    // relative url()s of a stylesheet in a subdirectory, as seen from _md2html
+    private static String rebase(String css, String dir) {
+        if (dir.isEmpty()) {
+            return css;
+        }
+        Matcher m = urlPattern.matcher(css);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String url = m.group(1).trim();
+            boolean relative = !url.isEmpty() && !url.startsWith("/") && !url.startsWith("#") && !url.contains(":");
+            String replacement = relative ? m.group().substring(0, m.start(1)-m.start())+dir+m.group(1) : m.group();
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    // comments and whitespace out; strings as they are; non-ascii as css escapes, so the result
+    // survives anything that turns non-ascii into html entities (the native converter does)
+    static String minifyCss(String css) {
+        StringBuilder sb = new StringBuilder(css.length());
+        boolean space = false;
+        int n = css.length();
+        for (int k = 0; k < n; ++k) {
+            char c = css.charAt(k);
+            if (c == '/' && k+1 < n && css.charAt(k+1) == '*') {
+                int end = css.indexOf("*/", k+2);
+                end = end < 0 ? n : end+2;
+                if (k+2 < n && css.charAt(k+2) == '!') {
+                    sb.append(css, k, end).append('\n'); // licenses stay
+                }
+                k = end-1;
+                space = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                char last = sb.length() > 0 ? sb.charAt(sb.length()-1) : '{';
+                if ("{};:,>\n".indexOf(last) < 0 && "{};,>".indexOf(c) < 0) {
+                    sb.append(' ');
+                }
+                space = false;
+            }
+            if (c == '"' || c == '\'') {
+                int end = k+1;
+                while (end < n && css.charAt(end) != c && css.charAt(end) != '\n') {
+                    end += css.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(end+1, n);
+                escape(sb, css.substring(k, end));
+                k = end-1;
+                continue;
+            }
+            if (c == '}' && sb.length() > 0 && sb.charAt(sb.length()-1) == ';') {
+                sb.setLength(sb.length()-1);
+            }
+            int length = Character.charCount(css.codePointAt(k));
+            escape(sb, css.substring(k, k+length));
+            k += length-1;
+        }
+        return sb.toString();
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int k = 0; k < s.length(); ) {
+            int cp = s.codePointAt(k);
+            if (cp < 128) {
+                sb.append((char) cp);
+            } else {
+                sb.append('\\').append(Integer.toHexString(cp)).append(' ');
+            }
+            k += Character.charCount(cp);
+        }
+    }
+
+    // only what can't change the meaning, even without a parser: template literals (whose lines
+    // matter) keep everything
+    static String minifyJs(String js) {
+        if (js.indexOf('`') >= 0) {
+            return js;
+        }
+        StringBuilder sb = new StringBuilder(js.length());
+        for (String line: js.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("//")) {
+                continue;
+            }
+            sb.append(trimmed).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // bundles of earlier builds
+    private static void prune() {
+        File[] entries = new File(Bundle.resourcePath).listFiles();
+        for (File entry: entries == null ? new File[0] : entries) {
+            if (bundleName.matcher(entry.getName()).matches() && !bundles.contains(entry.getName())) {
+                entry.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+
+// puts non-markup files (images, pdfs, archives, ...) into the publish tree, '-assets <MODE>':
+//
+//      copy        a real copy, through FileChannel.transferTo (the kernel copies, not us)
+//      hardlink    no extra space; falls back to copy across file systems
+//      symlink     no extra space, but the publish tree only works next to the sources
+//      reflink     copy-on-write clone ('cp --reflink') where the file system can, copy elsewhere
+//
+// an output that already has the source's size and content (or is already the link) is left alone.
+public class AssetMirror {
+    public static final String[] modes = {"copy", "hardlink", "symlink", "reflink"};
+    // smaller files are copied even in reflink mode, a process costs more than the copy
+    private static final long reflinkThreshold = 64*1024;
+    private static volatile Boolean reflinkWorks = null;
+    private static volatile boolean hardlinkFailed = false;
+
+    public static boolean isMode(String mode) {
+        return Arrays.asList(modes).contains(mode);
+    }
+
+    // returns false if the output was already up to date
+    public static boolean mirror(File inputFile, File outputFile) throws IOException {
+        return mirror(inputFile, outputFile, Config.assetMode);
+    }
+
+    public static boolean mirror(File inputFile, File outputFile, String mode) throws IOException {
+        Path src = inputFile.toPath();
+        Path dst = outputFile.toPath();
+        if (isUpToDate(src, dst, mode)) {
+            return false;
+        }
+        // never write through an old link into the source
+        Files.deleteIfExists(dst);
+        BuildManifest.invalidate(dst.toString());
+        if (mode.equals("symlink")) {
+            Files.createSymbolicLink(dst, src.toAbsolutePath());
+            return true;
+        }
+        if (mode.equals("hardlink")) {
+            try {
+                Files.createLink(dst, src);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                if (!hardlinkFailed) {
+                    hardlinkFailed = true;
+                    Utility.log("[L] Can't hard-link %s (%s), copying instead.\n", dst, e.getMessage());
+                }
+            }
+        }
+        if (mode.equals("reflink") && inputFile.length() >= reflinkThreshold && reflink(src, dst)) {
+            return true;
+        }
+        copy(src, dst);
+        return true;
+    }
+
+    private static boolean isUpToDate(Path src, Path dst, String mode) throws IOException {
+        if (!Files.exists(dst, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        if (Files.isSymbolicLink(dst)) {
+            return mode.equals("symlink") && Files.readSymbolicLink(dst).equals(src.toAbsolutePath());
+        }
+        if (mode.equals("symlink")) {
+            return false;
+        }
+        if (Files.isSameFile(src, dst)) {
+            return mode.equals("hardlink");
+        }
+        if (mode.equals("hardlink") && !hardlinkFailed) {
+            return false; // a copy, but it could be a link
+        }
+        BasicFileAttributes in = Files.readAttributes(src, BasicFileAttributes.class);
+        BasicFileAttributes out = Files.readAttributes(dst, BasicFileAttributes.class);
+        if (in.size() != out.size()) {
+            return false;
+        }
+        // same size: compare contents (the hashes are cached by size and mtime)
+        return BuildManifest.hashFile(src.toString()).equals(BuildManifest.hashFile(dst.toString()));
+    }
+
+    // the bytes through transferTo, then what Files.copy(COPY_ATTRIBUTES) would keep of the rest:
+    // the mtime and the permissions (where the file system has posix ones). not the owner
+    public static void copy(Path src, Path dst) throws IOException {
+        try (
+            FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+        Files.setLastModifiedTime(dst, Files.getLastModifiedTime(src));
+        PosixFileAttributeView view = Files.getFileAttributeView(dst, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(Files.getPosixFilePermissions(src));
+        }
+    }
+
+    // tried once; if the file system can't, everything else is copied
+    private static boolean reflink(Path src, Path dst) {
+        if (Boolean.FALSE.equals(reflinkWorks)) {
+            return false;
+        }
+        boolean cloned = false;
+        try {
+            Subprocesses.Result result = Subprocesses.run(Arrays.asList("cp", "--reflink=always",
+                    "--preserve=timestamps", src.toString(), dst.toString()), null, null);
+            cloned = result.succeeded();
+        } catch (IOException e) {
+            // no cp
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (reflinkWorks == null) {
+            reflinkWorks = cloned;
+            if (!cloned) {
+                Utility.log("[L] No reflinks between %s and %s, copying instead.\n",
+                        Config.srcDirPath, Config.dstDirPath);
+            }
+        }
+        if (!cloned) {
+            try {
+                Files.deleteIfExists(dst);
+            } catch (IOException e) {
+                // copy() overwrites it
+            }
+        }
+        return cloned;
+    }
+}
@@ -0,0 +1,34 @@
+package com.tangzhixiong.md2html;
+
+// JDK Flight Recorder events, one per pipeline stage and one per file:
+//
+//      $ java -XX:StartFlightRecording=filename=build.jfr -jar md2html.jar ...
+//      $ jfr print --categories md2html build.jfr
+//
+// only touched through BuildStats. jdk.jfr isn't there to compile against on JDK 8 (before 8u262),
+// so the events live in src/main/java11 (JfrBuildEvents), built on newer JDKs and loaded by name
+// if the running JVM has jdk.jfr; without them get() is null.
+abstract class BuildEvents {
+    private static final BuildEvents instance = load();
+
+    static BuildEvents get() {
+        return instance;
+    }
+
+    private static BuildEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (BuildEvents) Class.forName("com.tangzhixiong.md2html.JfrBuildEvents").newInstance();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    abstract Object beginPhase(String phase, String path);
+
+    abstract Object beginFile(String path);
+
+    abstract void end(Object event, String outcome);
+
+    abstract void subprocess(String command);
+}
@@ -0,0 +1,255 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// _md2html/build-manifest.txt: for every source, a fingerprint of everything its output depends on
+// (its content, the content of its transitive includes, and for converted pages also the template,
+// the merged config and the converter options). a file is rebuilt iff its fingerprint changed.
+//
+//      <source>\t<fingerprint>\t<include>\t<include>...
+//
+// paths under srcDir are stored relative to it, so a manifest survives moving or restoring the tree.
+public class BuildManifest {
+    public static final String manifestRes = "build-manifest.txt";
+    private static final String header = "# md2html build manifest v1";
+    private static final long mapThreshold = 1 << 20; // hash files larger than this through mmap
+
+    private static class Entry {
+        final String fingerprint;
+        final List<String> includes;
+        Entry(String fingerprint, List<String> includes) {
+            this.fingerprint = fingerprint;
+            this.includes = includes;
+        }
+    }
+
+    // key: canonical source path
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // content hashes, valid as long as the file's stamp (size, mtime, identity) did not change. mtimes
+    // can be as coarse as a second (jdk 8 on linux), so what a watch event or a build reports as
+    // changed is dropped from here too
+    private static final ConcurrentHashMap<String, String[]> hashCache = new ConcurrentHashMap<>();
+
+    public static String getManifestPath() {
+        return Bundle.resourcePath+File.separator+manifestRes;
+    }
+
+    // also seeds IncludeGraph with what every source included last time
+    public static void load() {
+        entries.clear();
+        IncludeGraph.clear();
+        File file = new File(getManifestPath());
+        if (!file.isFile()) {
+            return;
+        }
+        List<String> lines;
+        try {
+            // written as utf-8, whatever the platform's charset
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return; // unreadable, rebuild everything
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(header)) {
+            return; // unknown format, rebuild everything
+        }
+        for (String line: lines.subList(1, lines.size())) {
+            String[] parts = line.split("\t");
+            if (parts.length < 2) { continue; }
+            ArrayList<String> includes = new ArrayList<>();
+            for (int k = 2; k < parts.length; ++k) {
+                includes.add(absolute(parts[k]));
+            }
+            entries.put(absolute(parts[0]), new Entry(parts[1], includes));
+            IncludeGraph.setIncludes(absolute(parts[0]), includes);
+        }
+    }
+
+    public static synchronized void save() {
+        File file = new File(getManifestPath());
+        Utility.mkdirHyphenPDollarAtD(file);
+        ArrayList<String> keys = new ArrayList<>(entries.keySet());
+        Collections.sort(keys);
+        try {
+            File temp = new File(file.getAbsolutePath()+".tmp");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                writer.write(header);
+                writer.write("\n");
+                for (String key: keys) {
+                    Entry entry = entries.get(key);
+                    if (entry == null) { continue; }
+                    writer.write(relative(key));
+                    writer.write("\t");
+                    writer.write(entry.fingerprint);
+                    for (String include: entry.includes) {
+                        writer.write("\t");
+                        writer.write(relative(include));
+                    }
+                    writer.write("\n");
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static boolean isUpToDate(String inputPath, String fingerprint) {
+        Entry entry = entries.get(inputPath);
+        return entry != null && entry.fingerprint.equals(fingerprint);
+    }
+
+    public static void record(String inputPath, String fingerprint, Collection<String> includes) {
+        entries.put(inputPath, new Entry(fingerprint, new ArrayList<>(includes)));
+    }
+
+    public static void forget(String inputPath) {
+        entries.remove(inputPath);
+    }
+
+    // path was changed (by someone else, or by us): its next hash is computed, not remembered
+    public static void invalidate(String path) {
+        hashCache.remove(path);
+    }
+
+    // the includes' content hashes as of now
+    public static Map<String, String> hashes(Collection<String> includes) {
+        HashMap<String, String> hashes = new HashMap<>();
+        for (String include: includes) {
+            hashes.put(include, hashFile(include));
+        }
+        return hashes;
+    }
+
+    // with the hashes of the source and the includes as they were read, not as they are now
+    public static String fingerprint(String sourceHash, boolean isConverted, Map<String, String> includes) {
+        MessageDigest md = newDigest();
+        update(md, "source");
+        update(md, sourceHash);
+        TreeMap<String, String> sorted = new TreeMap<>(includes);
+        for (Map.Entry<String, String> include: sorted.entrySet()) {
+            update(md, relative(include.getKey()));
+            update(md, include.getValue());
+        }
+        if (!isConverted) {
+            update(md, "assets="+Config.assetMode);
+        } else {
+            update(md, "template");
+            update(md, hashFile(Bundle.htmltemplatePath));
+            update(md, "config");
+            update(md, hashFile(Bundle.dotmd2htmlymlPath));
+            update(md, "options");
+            update(md, converterOptions());
+        }
+        return hex(md.digest());
+    }
+
+    // everything on the command line that changes what a converted page looks like
+    static String converterOptions() {
+        return "converter="+Config.converter
+                +" expand="+Config.expandMarkdown
+                +" fold="+Config.foldMarkdown
+                +" inline-css="+(AssetBundler.getInlineCss() == null ? "-" : hashBytes(
+                        AssetBundler.getInlineCss().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // content hash (sha-1, hex) of a file, "-" if it cannot be read
+    public static String hashFile(String path) {
+        File file = new File(path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return "-";
+        }
+        if (!attrs.isRegularFile()) {
+            return "-";
+        }
+        long size = attrs.size();
+        // the inode (where there is one) tells a file replaced by an editor's rename from the old one
+        String stamp = size+":"+attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)+":"+attrs.fileKey();
+        String[] cached = hashCache.get(path);
+        if (cached != null && cached[0].equals(stamp)) {
+            return cached[1];
+        }
+        MessageDigest md = newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (size >= mapThreshold) {
+                long position = 0;
+                while (position < size) {
+                    long length = Math.min(Integer.MAX_VALUE, size-position);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    md.update(buffer);
+                    position += length;
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+            }
+        } catch (IOException e) {
+            return "-";
+        }
+        String hash = hex(md.digest());
+        hashCache.put(path, new String[]{stamp, hash});
+        return hash;
+    }
+
+    public static String hashBytes(byte[] bytes) {
+        MessageDigest md = newDigest();
+        md.update(bytes);
+        return hex(md.digest());
+    }
+
+    public static String hashString(String s) {
+        MessageDigest md = newDigest();
+        update(md, s);
+        return hex(md.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length*2);
+        for (byte b: bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String relative(String path) {
+        String prefix = Bundle.srcDir+File.separator;
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+    }
+
+    private static String absolute(String path) {
+        return new File(path).isAbsolute() ? path : Bundle.srcDir+File.separator+path;
+    }
+}
@@ -0,0 +1,182 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// '-stats': where a build's time goes. written to _md2html/build-stats.json after the build (and after
+// every rebuild in watch mode):
+//
+//      phases      wall time of scan, resources, config, nav; summed over all workers for the
+//                  per-file phases (expansion, clean, conversion, copy)
+//      files       rebuilt / skipped / failed, and a histogram of rebuild latencies (ms, power-of-2 buckets)
+//      slowest     the Config.statsSlowest slowest rebuilds
+//      subprocesses  pandoc (and pandoc-server) processes started
+//
+// the same spans also go to JDK Flight Recorder (see BuildEvents) when the JVM has it, -stats or not.
+public class BuildStats {
+    public static final String statsRes = "build-stats.json";
+    private static final int buckets = 18; // <1, <2, <4, ... <65536, >=65536 ms
+
+    private static final BuildEvents jfr = BuildEvents.get();
+    private static final long started = System.nanoTime();
+
+    // phase -> {nanos, count}
+    private static final LinkedHashMap<String, long[]> phases = new LinkedHashMap<>();
+    private static final long[] histogram = new long[buckets];
+    // slowest rebuilds, fastest first
+    private static final PriorityQueue<Object[]> slowest = new PriorityQueue<>(11, new Comparator<Object[]>() {
+        @Override
+        public int compare(Object[] o1, Object[] o2) {
+            return Long.compare((Long) o1[1], (Long) o2[1]);
+        }
+    });
+    private static long rebuilt = 0;
+    private static long skipped = 0;
+    private static long failed = 0;
+    private static long subprocesses = 0;
+
+    // a timed stretch of work; begin() returns null when nobody listens
+    public static class Span {
+        final String phase;
+        final long start = System.nanoTime();
+        final Object event;
+
+        Span(String phase, Object event) {
+            this.phase = phase;
+            this.event = event;
+        }
+
+        public void end() {
+            if (Config.stats) {
+                addPhase(phase, System.nanoTime() - start);
+            }
+            if (event != null) {
+                jfr.end(event, null);
+            }
+        }
+    }
+
+    public static Span begin(String phase) {
+        return begin(phase, null);
+    }
+
+    public static Span begin(String phase, String path) {
+        Object event = jfr != null ? jfr.beginPhase(phase, path) : null;
+        return Config.stats || event != null ? new Span(phase, event) : null;
+    }
+
+    public static void end(Span span) {
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    // one file through mappingFile, ended by skipped() or rebuilt()
+    public static Object beginFile(String path) {
+        return jfr != null ? jfr.beginFile(path) : null;
+    }
+
+    public static void skipped(Object event) {
+        if (event != null) {
+            jfr.end(event, "skipped");
+        }
+        if (Config.stats) {
+            synchronized (BuildStats.class) {
+                ++skipped;
+            }
+        }
+    }
+
+    public static void rebuilt(Object event, String path, long start, boolean succeeded) {
+        if (event != null) {
+            jfr.end(event, succeeded ? "rebuilt" : "failed");
+        }
+        if (!Config.stats) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = millis == 0 ? 0 : Math.min(buckets-1, 64 - Long.numberOfLeadingZeros(millis));
+        synchronized (BuildStats.class) {
+            if (succeeded) { ++rebuilt; } else { ++failed; }
+            ++histogram[bucket];
+            slowest.add(new Object[]{path, nanos});
+            if (slowest.size() > Config.statsSlowest) {
+                slowest.poll();
+            }
+        }
+    }
+
+    public static void subprocess(List<String> command) {
+        if (jfr != null) {
+            jfr.subprocess(command.toString());
+        }
+        if (Config.stats) {
+            synchronized (BuildStats.class) {
+                ++subprocesses;
+            }
+        }
+    }
+
+    private static synchronized void addPhase(String phase, long nanos) {
+        long[] total = phases.get(phase);
+        if (total == null) {
+            total = new long[2];
+            phases.put(phase, total);
+        }
+        total[0] += nanos;
+        total[1] += 1;
+    }
+
+    public static String getStatsPath() {
+        return Bundle.resourcePath+File.separator+statsRes;
+    }
+
+    public static synchronized void write() {
+        if (!Config.stats) {
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"elapsedMs\": ").append(millis(System.nanoTime() - started));
+        json.append(",\n  \"jobs\": ").append(Config.jobs);
+        json.append(",\n  \"converter\": ").append(Json.quote(Config.converter));
+        json.append(",\n  \"phases\": {");
+        boolean first = true;
+        for (Map.Entry<String, long[]> phase: phases.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append("    ").append(Json.quote(phase.getKey()));
+            json.append(": {\"ms\": ").append(millis(phase.getValue()[0]));
+            json.append(", \"count\": ").append(phase.getValue()[1]).append("}");
+            first = false;
+        }
+        json.append("\n  },\n  \"files\": {\"rebuilt\": ").append(rebuilt);
+        json.append(", \"skipped\": ").append(skipped);
+        json.append(", \"failed\": ").append(failed).append("}");
+        json.append(",\n  \"latencyHistogram\": [");
+        for (int k = 0; k < buckets; ++k) {
+            json.append(k == 0 ? "\n" : ",\n");
+            json.append("    {\"ltMs\": ").append(k == buckets-1 ? "null" : String.valueOf(1L << k));
+            json.append(", \"count\": ").append(histogram[k]).append("}");
+        }
+        json.append("\n  ],\n  \"slowest\": [");
+        ArrayList<Object[]> sorted = new ArrayList<>(slowest);
+        Collections.sort(sorted, Collections.reverseOrder(slowest.comparator()));
+        first = true;
+        for (Object[] file: sorted) {
+            json.append(first ? "\n" : ",\n");
+            json.append("    {\"path\": ").append(Json.quote((String) file[0]));
+            json.append(", \"ms\": ").append(millis((Long) file[1])).append("}");
+            first = false;
+        }
+        json.append("\n  ],\n  \"subprocesses\": ").append(subprocesses);
+        json.append("\n}\n");
+        // never seen half-written
+        Utility.writeIfChanged(new File(getStatsPath()), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
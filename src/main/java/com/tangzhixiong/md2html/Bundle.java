@@ -2,11 +2,20 @@ package com.tangzhixiong.md2html;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Bundle {
     public static HashSet<String> mdExts = new HashSet<>();
@@ -50,8 +59,13 @@ public class Bundle {
     public static String dstDir;
     public static WatchService watchService = null;
 
-    final public static HashMap<String, String> src2dst = new HashMap<>();
-    final public static HashMap<WatchKey, String> key2dir = new HashMap<>();
+    // kept current by watch mode (addFile, addDirectory, ...), read by the build workers
+    final public static Map<String, String> src2dst = new ConcurrentHashMap<>();
+    final public static Map<WatchKey, String> key2dir = new ConcurrentHashMap<>();
+    final private static HashMap<String, WatchKey> dir2key = new HashMap<>();
+    // every directory we know of; those without a key are polled ('-watch-backend poll|hybrid')
+    final private static HashSet<String> directories = new HashSet<>();
+    private static boolean watchLimitReached = false;
 
     public static final String resourceDirName = "_md2html";
     public static final String md2htmlymlRes = ".md2html.yml";
@@ -92,48 +106,245 @@ public class Bundle {
 
         src2dst.clear();
         key2dir.clear();
+        dir2key.clear();
+        directories.clear();
+        watchLimitReached = false;
+        addDirectory(new File(srcDirPath));
+    }
+
+    // walks dir, watching it and every directory below; returns the files that were new to src2dst.
+    // paths are canonical, as everywhere else (TreeChanges, expandLines): dir is canonicalized, and
+    // below it only symlinks need to be, everything else is named relative to it. subtrees are
+    // listed in parallel.
+    public static synchronized List<String> addDirectory(File dir) {
+        ArrayList<String> added = new ArrayList<>();
+        final Path root;
+        try {
+            root = dir.getCanonicalFile().toPath();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return added;
+        }
+        ScanTask scan = new ScanTask(root, new ConcurrentLinkedQueue<String>(), new ConcurrentLinkedQueue<String>(),
+                Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>()));
+        try {
+            scan.seen.add(Files.readAttributes(root, BasicFileAttributes.class).fileKey());
+        }
+        catch (IOException | NullPointerException e) {
+            // no file keys here, symlink loops are not detected
+        }
+        getScanPool().invoke(scan);
 
-        boolean stillInBasedir = true;
-        final ArrayDeque<File> queue = new ArrayDeque<>();
-        queue.add(new File(srcDirPath));
-        while (!queue.isEmpty()) {
-            File pwd = queue.poll();
-            try {
-                // System.out.printf("Watching %s...\n", pwd.getCanonicalPath());
-                WatchKey key = pwd.toPath().register(watchService
-                        , StandardWatchEventKinds.ENTRY_MODIFY
-                        , StandardWatchEventKinds.ENTRY_CREATE );
-                key2dir.put(key, pwd.getCanonicalPath());
+        for (String pwd: scan.dirs) {
+            directories.add(pwd);
+            if (!dir2key.containsKey(pwd)) {
+                try {
+                    register(new File(pwd), pwd);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
-            catch (IOException e) {
-                e.printStackTrace();
+        }
+        for (String file: scan.files) {
+            if (addFile(file)) {
+                added.add(file);
             }
+        }
+        return added;
+    }
+
+    private static ForkJoinPool scanPool;
 
-            final File[] entries;
-            try {
-                entries = pwd.listFiles();
-            }
-            catch (NullPointerException e) { continue; }
-            if (entries == null) { continue; }
-            for (final File entry: entries) {
-                final String entryCanoPath = entry.getCanonicalPath();
-                final String entryBasename = entry.getName();
-                if (entry.isFile()) {
-                    src2dst.put(entryCanoPath, dstDir + File.separator + entryCanoPath.substring(srcDir.length()+1));
-                } else if (entry.isDirectory()) {
-                    if (stillInBasedir && entryBasename.equals(resourceDirName)) { continue; }
-                    if (dstDir.endsWith(entryBasename) && dstDir.equals(entryCanoPath)) {
-                        continue;
+    private static synchronized ForkJoinPool getScanPool() {
+        if (scanPool == null) {
+            scanPool = new ForkJoinPool(Math.max(1, Config.jobs));
+        }
+        return scanPool;
+    }
+
+    // one directory: its files and subdirectories go to the shared queues, subdirectories are forked
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Path dir;
+        final ConcurrentLinkedQueue<String> dirs;
+        final ConcurrentLinkedQueue<String> files;
+        final Set<Object> seen; // file keys of the directories walked, against symlink loops
+
+        ScanTask(Path dir, ConcurrentLinkedQueue<String> dirs, ConcurrentLinkedQueue<String> files, Set<Object> seen) {
+            this.dir = dir;
+            this.dirs = dirs;
+            this.files = files;
+            this.seen = seen;
+        }
+
+        @Override
+        protected void compute() {
+            dirs.add(dir.toString());
+            ArrayList<ScanTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry: stream) {
+                    Path path = entry;
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isSymbolicLink()) {
+                            // named by its target, as getCanonicalPath() names it
+                            path = entry.toRealPath();
+                            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                        }
+                    }
+                    catch (IOException e) {
+                        continue; // dangling link, or gone already
                     }
-                    if (!entryBasename.startsWith(".")) {
-                        queue.add(entry);
+                    if (attrs.isRegularFile()) {
+                        files.add(path.toString());
+                    } else if (attrs.isDirectory()
+                            && !isIgnoredDirectory(path.toString(), entry.getFileName().toString())
+                            && (attrs.fileKey() == null || seen.add(attrs.fileKey()))) {
+                        subtasks.add(new ScanTask(path, dirs, files, seen));
                     }
                 }
             }
-            stillInBasedir = false;
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    // native: every directory gets a key. poll: none. hybrid: as many as Config.maxWatches (and the
+    // kernel) allow, the rest is polled.
+    private static void register(File dir, String dirCanoPath) throws IOException {
+        if (Config.watchBackend.equals("poll") || watchLimitReached) {
+            return;
+        }
+        boolean hybrid = Config.watchBackend.equals("hybrid");
+        if (hybrid && dir2key.size() >= Config.maxWatches) {
+            watchLimitReached = true;
+            return;
+        }
+        try {
+            // System.out.printf("Watching %s...\n", dirCanoPath);
+            WatchKey key = dir.toPath().register(watchService
+                    , StandardWatchEventKinds.ENTRY_MODIFY
+                    , StandardWatchEventKinds.ENTRY_CREATE
+                    , StandardWatchEventKinds.ENTRY_DELETE );
+            key2dir.put(key, dirCanoPath);
+            dir2key.put(dirCanoPath, key);
+        } catch (IOException e) {
+            if (!hybrid) {
+                throw e;
+            }
+            // most likely out of inotify watches, poll from here on
+            watchLimitReached = true;
+            if (!Config.silentMode) {
+                System.out.printf("[L] Can't watch %s (%s), polling it instead.\n", dirCanoPath, e.getMessage());
+            }
         }
     }
 
+    // _md2html at the top, the output dir (if it's inside the source dir), and hidden dirs
+    public static boolean isIgnoredDirectory(File dir) {
+        return isIgnoredDirectory(dir.getAbsolutePath(), dir.getName());
+    }
+
+    private static boolean isIgnoredDirectory(String path, String basename) {
+        return path.equals(srcDir + File.separator + resourceDirName)
+                || path.equals(dstDir)
+                || basename.startsWith(".");
+    }
+
+    public static synchronized boolean isKnownDirectory(String dirCanoPath) {
+        return directories.contains(dirCanoPath);
+    }
+
+    public static synchronized ArrayList<String> getDirectories(boolean unwatchedOnly) {
+        ArrayList<String> dirs = new ArrayList<>();
+        for (String dir: directories) {
+            if (!unwatchedOnly || !dir2key.containsKey(dir)) {
+                dirs.add(dir);
+            }
+        }
+        return dirs;
+    }
+
+    // returns true if the file was new
+    public static boolean addFile(String fileCanoPath) {
+        if (!fileCanoPath.startsWith(srcDir + File.separator) || src2dst.containsKey(fileCanoPath)) {
+            return false;
+        }
+        src2dst.put(fileCanoPath, dstDir + File.separator + fileCanoPath.substring(srcDir.length()+1));
+        return true;
+    }
+
+    // returns its output path, null if the file was not known
+    public static String removeFile(String fileCanoPath) {
+        return src2dst.remove(fileCanoPath);
+    }
+
+    // stops watching dir and everything below it; returns the files dropped from src2dst (and their outputs)
+    public static synchronized Map<String, String> removeDirectory(String dirCanoPath) {
+        String prefix = dirCanoPath + File.separator;
+        Iterator<String> dirs = directories.iterator();
+        while (dirs.hasNext()) {
+            String dir = dirs.next();
+            if (dir.equals(dirCanoPath) || dir.startsWith(prefix)) {
+                dirs.remove();
+            }
+        }
+        Iterator<Map.Entry<String, WatchKey>> it = dir2key.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, WatchKey> entry = it.next();
+            if (entry.getKey().equals(dirCanoPath) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().cancel();
+                key2dir.remove(entry.getValue());
+                it.remove();
+            }
+        }
+        LinkedHashMap<String, String> removed = new LinkedHashMap<>();
+        for (String file: filesUnder(dirCanoPath)) {
+            String outputPath = src2dst.remove(file);
+            if (outputPath != null) {
+                removed.put(file, outputPath);
+            }
+        }
+        return removed;
+    }
+
+    // after an OVERFLOW: brings dir's part of src2dst/key2dir back in line with the disk.
+    // returns the files that are gone (and their outputs), everything else under dir may have changed
+    public static synchronized Map<String, String> rescan(String dirCanoPath) {
+        LinkedHashMap<String, String> removed = new LinkedHashMap<>();
+        if (!new File(dirCanoPath).isDirectory()) {
+            return removeDirectory(dirCanoPath);
+        }
+        for (String dir: new ArrayList<>(directories)) {
+            if (dir.startsWith(dirCanoPath + File.separator) && directories.contains(dir) && !new File(dir).isDirectory()) {
+                removed.putAll(removeDirectory(dir));
+            }
+        }
+        for (String file: filesUnder(dirCanoPath)) {
+            if (!new File(file).isFile()) {
+                removed.put(file, src2dst.remove(file));
+            }
+        }
+        addDirectory(new File(dirCanoPath));
+        return removed;
+    }
+
+    public static List<String> filesUnder(String dirCanoPath) {
+        String prefix = dirCanoPath + File.separator;
+        ArrayList<String> files = new ArrayList<>();
+        for (String file: src2dst.keySet()) {
+            if (file.startsWith(prefix)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
     public static Vector<String> getFiles() {
         Vector<String> files = new Vector<>();
         try {
@@ -141,9 +352,11 @@ public class Bundle {
             for (String f: src2dst.keySet()) {
                 files.add(f);
             }
-            // dirs
-            for (String f: key2dir.values()) {
-                files.add(f+File.separator);
+            // dirs, watched or polled (but not srcDir itself)
+            for (String f: getDirectories(false)) {
+                if (!f.equals(srcDir)) {
+                    files.add(f+File.separator);
+                }
             }
             files.sort(new Comparator<String>() {
                 @Override
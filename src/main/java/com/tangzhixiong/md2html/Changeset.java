@@ -0,0 +1,292 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// '-changeset <FILE>': what the build changed in the publish tree, for uploads (and cache purges)
+// that only touch what changed. relative to the last build that wrote a changeset:
+//
+//      {"added":[{"path":"a/b.html","hash":"3f9a...","size":1234},...],
+//       "modified":[...], "deleted":[{"path":"old.html","hash":"c07e..."},...], "unchanged":4711}
+//
+// every output is hashed by the worker that produced (or checked) it; the hashes are kept in
+// _md2html/output-manifest.txt with size and mtime, so unchanged files aren't read again.
+//
+// '-prune': outputs no source produces anymore (the source was deleted or renamed) are deleted, and
+// show up as deleted. _md2html and dot files (.git, .nojekyll, ...) are left alone.
+public class Changeset {
+    public static final String manifestRes = "output-manifest.txt";
+    private static final String header = "# md2html output manifest v1";
+
+    private static class Output {
+        final String hash;
+        final long size;
+        final long mtime;
+        Output(String hash, long size, long mtime) {
+            this.hash = hash;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private static volatile boolean open = false;
+    // key: path relative to dstDir, '/' separated
+    private static final HashMap<String, Output> previous = new HashMap<>();
+    private static final ConcurrentHashMap<String, Output> current = new ConcurrentHashMap<>();
+    private static final Set<String> pruned = ConcurrentHashMap.newKeySet();
+
+    public static String getManifestPath() {
+        return Bundle.resourcePath+File.separator+manifestRes;
+    }
+
+    // loads what the last changeset left
+    public static void begin() {
+        previous.clear();
+        current.clear();
+        pruned.clear();
+        List<String> lines;
+        try {
+            // written as utf-8, whatever the platform's charset
+            lines = Files.readAllLines(Paths.get(getManifestPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            lines = Collections.emptyList();
+        }
+        if (!lines.isEmpty() && lines.get(0).equals(header)) {
+            for (String line: lines.subList(1, lines.size())) {
+                String[] parts = line.split("\t");
+                if (parts.length != 4) { continue; }
+                try {
+                    previous.put(parts[0], new Output(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                } catch (NumberFormatException e) {
+                    // a broken line: that file counts as added
+                }
+            }
+        }
+        open = true;
+    }
+
+    // an output that is up to date now, and was just written (or not)
+    public static void record(File file, boolean written) {
+        if (!open || !file.getPath().startsWith(Config.dstDirPath+File.separator)) {
+            return;
+        }
+        String path = relative(file.getPath());
+        long size = file.length();
+        long mtime = file.lastModified();
+        Output before = previous.get(path); // only read while the build runs
+        if (!written && before != null && before.size == size && before.mtime == mtime) {
+            current.put(path, before);
+            return;
+        }
+        if (written) {
+            BuildManifest.invalidate(file.getPath());
+        }
+        String hash = BuildManifest.hashFile(file.getPath());
+        if (!hash.equals("-")) {
+            current.put(path, new Output(hash, size, mtime));
+        }
+    }
+
+    // writes the changeset and the output manifest; false if they couldn't be written
+    public static boolean finish() {
+        if (!open) {
+            return true;
+        }
+        open = false;
+        TreeMap<String, Output> added = new TreeMap<>();
+        TreeMap<String, Output> modified = new TreeMap<>();
+        TreeMap<String, Output> deleted = new TreeMap<>();
+        int unchanged = 0;
+        for (Map.Entry<String, Output> entry: current.entrySet()) {
+            Output before = previous.get(entry.getKey());
+            if (before == null) {
+                added.put(entry.getKey(), entry.getValue());
+            } else if (!before.hash.equals(entry.getValue().hash)) {
+                modified.put(entry.getKey(), entry.getValue());
+            } else {
+                ++unchanged;
+            }
+        }
+        TreeMap<String, Output> outputs = new TreeMap<>(current);
+        for (Map.Entry<String, Output> entry: previous.entrySet()) {
+            String path = entry.getKey();
+            if (current.containsKey(path)) {
+                continue;
+            }
+            if (!pruned.contains(path) && new File(absolute(path)).isFile()) {
+                // still there, just not built this time (it failed, or isn't ours anymore)
+                outputs.put(path, entry.getValue());
+            } else {
+                deleted.put(path, entry.getValue());
+            }
+        }
+        for (String path: pruned) {
+            if (!deleted.containsKey(path)) {
+                deleted.put(path, null); // from before the first changeset
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"added\":").append(toJson(added, true));
+        json.append(",\n\"modified\":").append(toJson(modified, true));
+        json.append(",\n\"deleted\":").append(toJson(deleted, false));
+        json.append(",\n\"unchanged\":").append(unchanged).append("}\n");
+        boolean written = write(new File(Config.changesetPath), json.toString());
+
+        StringBuilder manifest = new StringBuilder(header).append('\n');
+        for (Map.Entry<String, Output> entry: outputs.entrySet()) {
+            Output output = entry.getValue();
+            manifest.append(entry.getKey()).append('\t').append(output.hash)
+                    .append('\t').append(output.size).append('\t').append(output.mtime).append('\n');
+        }
+        // only once the changeset is out: otherwise the next one has to report this one's changes too
+        written = written && write(new File(getManifestPath()), manifest.toString());
+        if (!Config.silentMode) {
+            System.out.printf("[L] Changeset: %d added, %d modified, %d deleted, %d unchanged -> %s\n",
+                    added.size(), modified.size(), deleted.size(), unchanged, Config.changesetPath);
+        }
+        return written;
+    }
+
+    // deletes what isn't an output of any source; returns #files deleted
+    public static int prune() {
+        final HashSet<String> expected = new HashSet<>();
+        for (Map.Entry<String, String> entry: Bundle.src2dst.entrySet()) {
+            String outputPath = entry.getValue();
+            if (!Utility.isPiped(outputPath) || Config.keepMarkdown) {
+                expected.add(outputPath);
+            }
+            if (Utility.isMarkdownFile(entry.getKey())) {
+                String html = outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html";
+                expected.add(html);
+                if (Config.readmeAsMainIndex && html.equals(Config.dstDirPath+File.separator+"README.html")) {
+                    expected.add(Config.dstDirPath+File.separator+"index.html");
+                }
+            }
+        }
+        // whatever we write next to the tree, if it is in there
+        for (String path: new String[]{Config.changesetPath, Config.archivePath}) {
+            if (path != null) {
+                try {
+                    String canonical = new File(path).getCanonicalPath();
+                    expected.add(canonical);
+                    expected.add(canonical+".part");
+                    expected.add(canonical+".tmp");
+                } catch (IOException e) {
+                    // then it can't be in there either
+                }
+            }
+        }
+        final Path root = Paths.get(Config.dstDirPath);
+        final Path resources = Paths.get(Bundle.resourcePath);
+        final Path sources = Paths.get(Config.srcDirPath);
+        if (sources.startsWith(root)) {
+            // sources inside the output: nothing there can be told apart from an orphan
+            Utility.log("[X] Not pruning %s, it holds the sources.\n", root);
+            return 0;
+        }
+        final int[] count = {0};
+        final HashSet<Path> touched = new HashSet<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    boolean skip = dir.equals(resources) || !dir.equals(root) && isHidden(dir);
+                    return skip ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String path = file.toString();
+                    if (isHidden(file) || expected.contains(path)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (path.endsWith(Precompressor.suffix)) {
+                        String base = path.substring(0, path.length()-Precompressor.suffix.length());
+                        if (Precompressor.isCompressible(base) && expected.contains(base)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+                    Files.delete(file);
+                    touched.add(file.getParent());
+                    pruned.add(relative(path));
+                    ++count[0];
+                    if (!Config.silentMode) {
+                        Utility.log("[D] %s\n", path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    Utility.log("[X] %s: %s\n", file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    // directories left empty by the pruning go too
+                    if (!dir.equals(root) && touched.contains(dir)) {
+                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                            if (!stream.iterator().hasNext()) {
+                                Files.delete(dir);
+                                touched.add(dir.getParent());
+                            }
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            Utility.log("[X] Pruning %s: %s\n", root, e);
+        }
+        return count[0];
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    private static String toJson(Map<String, Output> outputs, boolean withSize) {
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (Map.Entry<String, Output> entry: outputs.entrySet()) {
+            Output output = entry.getValue();
+            json.append(first ? "\n" : ",\n");
+            json.append("{\"path\":").append(Json.quote(entry.getKey()));
+            json.append(",\"hash\":").append(output == null ? "null" : Json.quote(output.hash));
+            if (withSize) {
+                json.append(",\"size\":").append(output.size);
+            }
+            json.append('}');
+            first = false;
+        }
+        return json.append(']').toString();
+    }
+
+    private static boolean write(File file, String text) {
+        File tmp = new File(file.getPath()+".tmp");
+        try {
+            Utility.mkdirHyphenPDollarAtD(file);
+            Files.write(tmp.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            tmp.delete();
+            Utility.log("[X] %s: %s\n", file, e);
+            return false;
+        }
+    }
+
+    private static String relative(String path) {
+        return path.substring(Config.dstDirPath.length()+1).replace(File.separatorChar, '/');
+    }
+
+    private static String absolute(String path) {
+        return Config.dstDirPath+File.separator+path.replace('/', File.separatorChar);
+    }
+}
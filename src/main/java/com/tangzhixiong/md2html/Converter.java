@@ -0,0 +1,32 @@
+package com.tangzhixiong.md2html;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// turns one file under dstDir (already copied or expanded) into its html page
+public interface Converter {
+    // name used on the command line, e.g. '-converter native'
+    String getName();
+
+    // can this converter handle files with this (lower-cased) extension?
+    boolean accepts(String ext);
+
+    // dst/dir/file.md -> dst/dir/file.html, returns false on failure
+    boolean convert(String outputPath, String outputPathHTML);
+
+    // pipe mode: the page comes from source, and dst/dir/file.md is not there (unless '-keep-md').
+    // converters that need a file on disk get it written first.
+    default boolean convert(String outputPath, PageSource source, String outputPathHTML) {
+        try (
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(outputPath));
+        ) {
+            source.writeTo(Utility.lineWriter(os, false));
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+            return false;
+        }
+        return convert(outputPath, outputPathHTML);
+    }
+}
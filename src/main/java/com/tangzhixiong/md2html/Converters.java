@@ -0,0 +1,42 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+
+public class Converters {
+    public static final Converter pandoc = new PandocConverter();
+    public static final Converter nativeMarkdown = new NativeConverter();
+    public static final PandocServerConverter pandocServer = new PandocServerConverter();
+
+    public static Converter get(String name) {
+        if (pandoc.getName().equals(name)) { return pandoc; }
+        if (nativeMarkdown.getName().equals(name)) { return nativeMarkdown; }
+        if (pandocServer.getName().equals(name)) { return pandocServer; }
+        return null;
+    }
+
+    // the configured converter if it can handle this file, pandoc otherwise
+    public static Converter forPath(String path) {
+        Converter preferred = get(Config.converter);
+        if (preferred != null && preferred.accepts(Utility.getExt(path).toLowerCase())) {
+            return preferred;
+        }
+        return pandoc;
+    }
+
+    // template variables every converter passes along: rootdir, md2htmldir, thispath, ismarkdown
+    // (and mh-css-inline, see AssetBundler)
+    public static LinkedHashMap<String, String> variables(String outputPath) {
+        LinkedHashMap<String, String> vars = new LinkedHashMap<>();
+        String suffix = Utility.getExt(outputPath);
+        vars.put("rootdir", Utility.resolveToRoot(outputPath, Bundle.dstDir));
+        vars.put("md2htmldir", Bundle.resourceDirName);
+        vars.put("thispath", outputPath.substring(Bundle.dstDir.length()+1).replace(File.separatorChar, '/'));
+        vars.put("ismarkdown", Bundle.mdExts.contains(suffix.toLowerCase()) ? "true" : "false");
+        String inlineCss = AssetBundler.getInlineCss();
+        if (inlineCss != null) {
+            vars.put("mh-css-inline", inlineCss);
+        }
+        return vars;
+    }
+}
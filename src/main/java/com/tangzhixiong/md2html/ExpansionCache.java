@@ -0,0 +1,91 @@
+package com.tangzhixiong.md2html;
+
+import java.util.*;
+
+// expanded include fragments, shared by all documents of a build (and across rebuilds in watch mode).
+// an entry is keyed by the fragment's canonical path and remembers the content hash of every file it
+// was expanded from, so it is only used while none of them changed. bounded by the total number of
+// cached lines, least recently used entries go first.
+public class ExpansionCache {
+    public static class Entry {
+        final List<String> lines;
+        // every file read for this expansion (the fragment itself included) -> its content hash
+        final LinkedHashMap<String, String> hashes;
+        // include edges of the files in this expansion, replayed into IncludeGraph on a hit
+        final LinkedHashMap<String, LinkedHashSet<String>> edges;
+        // inclusion logs, relative to the fragment (first element is the fragment itself)
+        final List<List<String>> logs;
+
+        Entry(List<String> lines, LinkedHashMap<String, String> hashes,
+              LinkedHashMap<String, LinkedHashSet<String>> edges, List<List<String>> logs) {
+            this.lines = Collections.unmodifiableList(lines);
+            this.hashes = hashes;
+            this.edges = edges;
+            this.logs = logs;
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedLines = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+
+    // the hashes are checked outside the lock (that is file i/o), so lookups of all workers don't
+    // wait for each other
+    public static Entry get(String path) {
+        Entry entry;
+        synchronized (ExpansionCache.class) {
+            entry = entries.get(path);
+            if (entry == null) {
+                ++misses;
+                return null;
+            }
+        }
+        for (Map.Entry<String, String> hash: entry.hashes.entrySet()) {
+            if (!BuildManifest.hashFile(hash.getKey()).equals(hash.getValue())) {
+                synchronized (ExpansionCache.class) {
+                    // unless someone put a fresh one there in the meantime
+                    if (entries.get(path) == entry) {
+                        remove(path);
+                    }
+                    ++misses;
+                }
+                return null;
+            }
+        }
+        synchronized (ExpansionCache.class) {
+            ++hits;
+        }
+        return entry;
+    }
+
+    public static synchronized void put(String path, Entry entry) {
+        if (entry.lines.size() > Config.expansionCacheLines / 4) {
+            return; // would push out too much
+        }
+        remove(path);
+        entries.put(path, entry);
+        cachedLines += entry.lines.size();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cachedLines > Config.expansionCacheLines && it.hasNext()) {
+            cachedLines -= it.next().getValue().lines.size();
+            it.remove();
+        }
+    }
+
+    public static synchronized void remove(String path) {
+        Entry old = entries.remove(path);
+        if (old != null) {
+            cachedLines -= old.lines.size();
+        }
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+        cachedLines = 0;
+    }
+
+    public static synchronized String getStats() {
+        return String.format("%d entries, %d lines, %d hits, %d misses", entries.size(), cachedLines, hits, misses);
+    }
+}
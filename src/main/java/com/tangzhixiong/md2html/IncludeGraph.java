@@ -0,0 +1,79 @@
+package com.tangzhixiong.md2html;
+
+import java.util.*;
+
+// who includes whom (via '@include <-=path='), both directions, all canonical paths.
+// seeded from the build manifest at startup, then kept current by every expansion,
+// so a changed fragment can schedule all of its (transitive) includers.
+public class IncludeGraph {
+    private static final HashMap<String, LinkedHashSet<String>> includes = new HashMap<>();
+    private static final HashMap<String, LinkedHashSet<String>> includers = new HashMap<>();
+
+    public static synchronized void clear() {
+        includes.clear();
+        includers.clear();
+    }
+
+    // replace the outgoing edges of file
+    public static synchronized void setIncludes(String file, Collection<String> direct) {
+        LinkedHashSet<String> old = includes.remove(file);
+        if (old != null) {
+            for (String target: old) {
+                Set<String> back = includers.get(target);
+                if (back != null) {
+                    back.remove(file);
+                    if (back.isEmpty()) { includers.remove(target); }
+                }
+            }
+        }
+        if (direct.isEmpty()) {
+            return;
+        }
+        includes.put(file, new LinkedHashSet<>(direct));
+        for (String target: direct) {
+            LinkedHashSet<String> back = includers.get(target);
+            if (back == null) {
+                back = new LinkedHashSet<>();
+                includers.put(target, back);
+            }
+            back.add(file);
+        }
+    }
+
+    // edges observed while expanding one document: every expanded file -> what it included
+    public static synchronized void update(Map<String, ? extends Collection<String>> edges) {
+        for (Map.Entry<String, ? extends Collection<String>> entry: edges.entrySet()) {
+            setIncludes(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public static synchronized void remove(String file) {
+        setIncludes(file, Collections.<String>emptyList());
+    }
+
+    // everything file pulls in, directly or not
+    public static synchronized Set<String> getIncludes(String file) {
+        return reach(file, includes);
+    }
+
+    // everything that pulls file in, directly or not
+    public static synchronized Set<String> getIncluders(String file) {
+        return reach(file, includers);
+    }
+
+    private static Set<String> reach(String file, HashMap<String, LinkedHashSet<String>> edges) {
+        LinkedHashSet<String> seen = new LinkedHashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(file);
+        while (!queue.isEmpty()) {
+            Set<String> next = edges.get(queue.poll());
+            if (next == null) { continue; }
+            for (String n: next) {
+                if (!n.equals(file) && seen.add(n)) {
+                    queue.add(n);
+                }
+            }
+        }
+        return seen;
+    }
+}
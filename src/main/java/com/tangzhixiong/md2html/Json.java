@@ -0,0 +1,27 @@
+package com.tangzhixiong.md2html;
+
+// the little json we write out (reports, indexes, request bodies)
+public class Json {
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length()+2);
+        sb.append('"');
+        for (int k = 0; k < s.length(); ++k) {
+            char c = s.charAt(k);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
@@ -3,9 +3,11 @@ package com.tangzhixiong.md2html;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
+import java.util.Arrays;
+import java.util.List;
 
 class Config {
     public static boolean watchMode = false;
@@ -16,7 +18,37 @@ class Config {
     public static boolean readmeAsMainIndex = false;
     public static boolean logCommands = false;
     public static boolean printGraph = false;
-    public static boolean hasIconv = false;
+    public static boolean pipeMarkdown = false;
+    public static boolean keepMarkdown = false;
+    public static int jobs = Runtime.getRuntime().availableProcessors();
+    public static String converter = "pandoc";
+    public static String pandocServerUrl = null;
+    public static long expansionCacheLines = 1 << 18;
+    public static long watchQuietMillis = 100;
+    // < 0: 10 x watchQuietMillis
+    public static long watchMaxDelayMillis = -1;
+    public static String watchBackend = "native";
+    public static long pollMillis = 500;
+    public static int maxWatches = 8192;
+    public static boolean stats = false;
+    public static int maxProcesses = 0; // 0: Config.jobs
+    public static long processTimeoutMillis = 10000;
+    public static String assetMode = "copy";
+    public static boolean bundleAssets = false;
+    public static boolean gzip = false;
+    public static long gzipMinBytes = 1024;
+    public static String archivePath = null;
+    public static String changesetPath = null;
+    public static boolean prune = false;
+    public static boolean search = false;
+    public static long inlineCssBytes = 0;
+    public static boolean serve = false;
+    public static int port = 8000;
+    public static String bindAddress = null;
+    public static String renderCacheDir = null;
+    public static long renderCacheBytes = 1L << 30;
+    public static int statsSlowest = 20;
+    public static int pandocWorkers = Math.min(4, Runtime.getRuntime().availableProcessors());
 
     public static String srcDirPath = null;
     public static String dstDirPath = null;
@@ -26,25 +58,20 @@ class Config {
 
 public class Main {
     public static void main(String[] args) {
+        // load commandline configs
+        parseConfigs(args);
+
         try {
             System.out.print("[L] Checking pandoc...");
-            Process p = new ProcessBuilder().command(new String[]{"pandoc", "-v"}).start();
-            p.waitFor(5, TimeUnit.SECONDS);
+            Subprocesses.run(Arrays.asList("pandoc", "-v"), null, null);
             System.out.print(" done. [Pandoc Installed]\n");
         } catch (Exception e) {
-            System.out.println("[X] Missing pandoc, go download at: \"http://pandoc.org/\"");
-            System.exit(0);
-        }
-        try {
-            System.out.print("[L] Checking iconv...");
-            Process p = new ProcessBuilder().command(new String[]{"iconv", "--version"}).start();
-            p.waitFor(5, TimeUnit.SECONDS);
-            System.out.print(" done. [Iconv Installed]\n");
-            Config.hasIconv = true;
-        } catch (Exception e) {
-            System.out.println("[X] Missing iconv, you better get one.");
+            if (Converters.pandoc.getName().equals(Config.converter)) {
+                System.out.println("[X] Missing pandoc, go download at: \"http://pandoc.org/\"");
+                System.exit(0);
+            }
+            System.out.println("[X] Missing pandoc, only markdown files will be converted.");
         }
-
         try {
             // hacks copied from StackOverflow: http://stackoverflow.com/questions/361975/setting-the-default-java-character-encoding
             System.setProperty("file.encoding", "UTF-8");
@@ -57,9 +84,6 @@ public class Main {
                     "'java -jar md2html.jar -Dfile.encoding=utf-8'.");
         }
         try {
-            // load commandline configs
-            parseConfigs(args);
-
             // config source dir
             if (Config.srcDirPath == null) { Config.srcDirPath = "."; }
             final File srcDirFile = new File(Config.srcDirPath);
@@ -86,27 +110,44 @@ public class Main {
             // normalize srcDirPath/dstDirPath
             Config.srcDirPath = srcDirFile.getCanonicalPath();
             Config.dstDirPath = dstDirFile.getCanonicalPath();
+            if (Config.renderCacheDir != null) {
+                Config.renderCacheDir = new File(Config.renderCacheDir).getAbsolutePath();
+            }
+            if (Config.changesetPath != null) {
+                Config.changesetPath = new File(Config.changesetPath).getAbsolutePath();
+            }
 
             // build file mapping strategy
+            BuildStats.Span span = BuildStats.begin("scan");
             Bundle.fillBundle(Config.srcDirPath, Config.dstDirPath);
+            BuildManifest.load();
+            BuildStats.end(span);
 
-            // extract necessary static resources
-            for (String resourcePath: Bundle.resources) {
-                Utility.extractResourceFile("/"+resourcePath, Bundle.resourcePath+File.separator+resourcePath);
+            // extract necessary static resources (those that changed), load your res files over
+            // them, and hash what ended up there
+            span = BuildStats.begin("resources");
+            StaticResources.extract();
+            if (Config.resDirPath != null) {
+                File resDir = new File(Config.resDirPath);
+                if (resDir.exists() && resDir.isDirectory()) {
+                    Utility.copyResources(Config.resDirPath, Bundle.resourcePath);
+                } else {
+                    System.out.println("[E] Invalid resource directory.");
+                }
             }
+            StaticResources.hashAll();
+            BuildStats.end(span);
+            // site listing, for main.js (not in the config, it would end up in every page)
+            span = BuildStats.begin("nav");
+            NavIndex.write();
+            BuildStats.end(span);
             // merge configs
+            span = BuildStats.begin("config");
             ArrayList<String> partAll = new ArrayList<>();
-            {
-                // add extracted config
-                ArrayList<String> files = Utility.listing();
-                partAll.add("files:");
-                for (String file: files) {
-                    partAll.add("  - "+file.replace('\\', '/'));
-                }
-            }
             {
                 // add your config and global config
-                partAll.addAll(Utility.getLinesNaive(Bundle.dotmd2htmlymlPath));
+                partAll.addAll(Arrays.asList(new String(StaticResources.read(Bundle.md2htmlymlRes),
+                        StandardCharsets.UTF_8).split("\r?\n")));
                 if (Config.configYaml != null) {
                     partAll.addAll(Utility.getLinesNaive(Config.configYaml));
                 }
@@ -129,23 +170,65 @@ public class Main {
                     yamlLinesToSave.add(line);
                 }
             }
-            // write merged configs out
-            Utility.dump(yamlLinesToSave, new File(Bundle.dotmd2htmlymlPath));
+            // write merged configs out, with the hashed names of our scripts and stylesheets (or
+            // the bundles of them)
+            List<String> ymlLines = AssetBundler.bundle(StaticResources.renameAll(yamlLinesToSave));
+            StringBuilder yml = new StringBuilder();
+            for (String line: ymlLines) {
+                yml.append(line).append('\n');
+            }
+            Utility.writeIfChanged(new File(Bundle.dotmd2htmlymlPath), yml.toString().getBytes(StandardCharsets.UTF_8));
+            BuildStats.end(span);
 
-            // load your res files
-            if (Config.resDirPath != null) {
-                File resDir = new File(Config.resDirPath);
-                if (resDir.exists() && resDir.isDirectory()) {
-                    Utility.copyResources(Config.resDirPath, Bundle.resourcePath);
-                } else {
-                    System.out.println("[E] Invalid resource directory.");
-                }
+            // no build up front: pages are built as they are asked for, and kept up to date
+            if (Config.serve) {
+                PreviewServer server = new PreviewServer();
+                RebuildScheduler scheduler = new RebuildScheduler(server);
+                server.setScheduler(scheduler);
+                server.start(Config.bindAddress, Config.port);
+                WatchBackends.get(Config.watchBackend).watch(new TreeChanges(scheduler));
+                return;
             }
 
-            // [srcDir]->[dstDir]: copy or convert, if update needed
-            for (String inputPath: Bundle.src2dst.keySet()) {
-                String outputPath = Bundle.src2dst.get(inputPath);
-                Utility.mappingFile(inputPath, outputPath);
+            // [srcDir]->[dstDir]: copy or convert, if update needed (and into the archive, as they are done)
+            if (Config.archivePath != null) {
+                PublishArchive.open(Config.archivePath);
+            }
+            if (Config.changesetPath != null) {
+                Changeset.begin();
+            }
+            if (Config.search) {
+                SearchIndex.begin();
+            }
+            span = BuildStats.begin("build");
+            int failures = Pipeline.build(Bundle.src2dst);
+            BuildStats.end(span);
+            span = BuildStats.begin("search");
+            SearchIndex.finish();
+            BuildStats.end(span);
+            span = BuildStats.begin("publish");
+            Utility.publishedResources();
+            if (Config.prune) {
+                Changeset.prune();
+            }
+            if (!PublishArchive.close()) {
+                ++failures;
+            }
+            if (!Changeset.finish()) {
+                ++failures;
+            }
+            BuildStats.end(span);
+            BuildManifest.save();
+            BuildStats.write();
+            RenderCache.evict();
+            if (Config.verboseMode && Config.expandMarkdown) {
+                System.out.println("[L] Expansion cache: "+ExpansionCache.getStats());
+            }
+            if (Config.verboseMode && RenderCache.isEnabled()) {
+                System.out.println("[L] Render cache: "+RenderCache.getStats());
+            }
+            if (failures > 0) {
+                System.out.printf("[X] %d file(s) failed to build.\n", failures);
             }
 
             // a -> b, build links
@@ -156,52 +239,12 @@ public class Main {
             // if not watchMode, done
             if (!Config.watchMode) {
                 System.out.println("\nTip: You can turn on [watch mode] with '-w' option.");
-                System.exit(0);
+                System.exit(failures > 0 ? 4 : 0);
             }
 
             // else, watch folder for changes, update when edits happen
             System.out.println("Watching...");
-            long prevTimeStamp = System.currentTimeMillis(), curTimeStamp;
-            String lastInputPath = "";
-            while (true) {
-                WatchKey key = null;
-                try {
-                    key = Bundle.watchService.take();
-                    if (key == null || !Bundle.key2dir.containsKey(key)) {
-                        throw new InterruptedException();
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                System.out.println("Watching...");
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    // if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) { continue; }
-                    @SuppressWarnings (value="unchecked")
-                    final File hit = new File( Bundle.key2dir.get(key)+ File.separator+     // dirname
-                                    ((WatchEvent<Path>) event).context().toFile().getName());   // basename
-                    if (!hit.exists() || !hit.isFile()) {
-                        continue;
-                    }
-                    String inputPath = hit.getCanonicalPath();
-                    String outputPath = "";
-                    curTimeStamp = System.currentTimeMillis();
-                    if (inputPath.equals(lastInputPath) && curTimeStamp - prevTimeStamp < 100) {    // 0.1 second
-                        continue;
-                    } else {
-                        lastInputPath = inputPath;
-                        prevTimeStamp = curTimeStamp;
-                    }
-                    if (Bundle.src2dst.keySet().contains(inputPath)) {
-                        outputPath = Bundle.src2dst.get(inputPath);
-                        Utility.mappingFile(inputPath, outputPath);
-                    }
-                }
-                boolean valid = key.reset();
-                if (!valid) {
-                    break;
-                }
-            }
+            WatchBackends.get(Config.watchBackend).watch(new TreeChanges(new RebuildScheduler()));
         }
         catch (Exception e ) {
             e.printStackTrace();
@@ -219,6 +262,34 @@ public class Main {
                 "           specify root of output files\n"+
                 "    -w, -watch\n"+
                 "           watch mode\n"+
+                "    -watch-backend <native|poll|hybrid> [-poll-interval <MS>] [-max-watches <N>]\n"+
+                "           how to notice changes: watch keys (default), polling (huge trees, bind mounts),\n"+
+                "           or watch keys for up to N directories (default: 8192) and polling for the rest\n"+
+                "    -assets <copy|hardlink|symlink|reflink>\n"+
+                "           how other files get into the output: copies (default), links, or copy-on-write\n"+
+                "           clones where the file system supports them (copies elsewhere)\n"+
+                "    -bundle [-inline-css <KB>]\n"+
+                "           concatenate and minify the local css and js of the config into one file per group\n"+
+                "           under _md2html; a first css bundle no bigger than KB goes into the pages instead\n"+
+                "    -gzip [-gzip-min <BYTES>]\n"+
+                "           write .gz next to html, css and js outputs of at least BYTES (default: 1024)\n"+
+                "    -archive <FILE.zip|FILE.tar|FILE.tar.gz>\n"+
+                "           also write the output tree into one archive, while it is being built\n"+
+                "    -changeset <FILE>\n"+
+                "           write the outputs added, modified and deleted since the last changeset (json)\n"+
+                "    -prune\n"+
+                "           delete outputs whose sources are gone (not _md2html, not dot files)\n"+
+                "    -search\n"+
+                "           build a full-text search index (_md2html/search) for search() in main.js\n"+
+                "    -serve [-port <N>] [-bind <ADDR>]\n"+
+                "           serve the output at http://localhost:N/ (default: 8000), building pages when they\n"+
+                "           are first asked for and reloading them in the browser when they are rebuilt;\n"+
+                "           only to this machine unless bound to ADDR (0.0.0.0: every interface)\n"+
+                "    -watch-quiet <MS>\n"+
+                "           rebuild once no file changed for MS milliseconds (default: 100)\n"+
+                "    -watch-max-delay <MS>\n"+
+                "           rebuild after MS milliseconds even if files keep changing\n"+
+                "           (default: 10 times the -watch-quiet time)\n"+
                 "    -s, -silent\n"+
                 "           silent mode\n"+
                 "    -v, -verbose\n"+
@@ -227,6 +298,24 @@ public class Main {
                 "           expand markdown files\n"+
                 "    -f, -fold\n"+
                 "           fold markdown contents\n"+
+                "    -converter <pandoc|native>\n"+
+                "           markdown backend, 'native' renders in-process (default: pandoc)\n"+
+                "    -converter pandoc-server [-pandoc-workers <N>] [-pandoc-server <URL>]\n"+
+                "           keep N pandoc-server workers running (or use the server at URL)\n"+
+                "    -pipe [-keep-md]\n"+
+                "           stream markdown into the converter, only write html (and .md copies if kept)\n"+
+                "    -j, -jobs <N>\n"+
+                "           convert N files in parallel (default: number of cores)\n"+
+                "    -max-procs <N>\n"+
+                "           run at most N converter processes at a time (default: jobs)\n"+
+                "    -process-timeout <SECONDS>\n"+
+                "           kill converter processes running longer than that (default: 10)\n"+
+                "    -cache <DIR> [-cache-size <MB>]\n"+
+                "           reuse pages rendered by any build sharing DIR, e.g. ~/.cache/md2html,\n"+
+                "           dropping the least recently used beyond MB (default: 1024)\n"+
+                "    -stats [-stats-slowest <N>]\n"+
+                "           write phase timings, rebuild latencies and the N slowest files (default: 20)\n"+
+                "           to _md2html/build-stats.json\n"+
                 "\nMore Usage Examples\n"+
                 "   1. current dir to ../publish:\n" +
                 "       $ java -jar md2html.jar -i . -o ../publish\n"+
@@ -235,6 +324,20 @@ public class Main {
         System.out.println(helpMsg);
     }
 
+    private static int parseCount(String value) {
+        try {
+            int jobs = Integer.parseInt(value);
+            if (jobs > 0) {
+                return jobs;
+            }
+        } catch (NumberFormatException e) {
+        }
+        System.err.println("Invalid number: "+value);
+        printHelp();
+        System.exit(3);
+        return 1;
+    }
+
     public static void parseConfigs(String[] args) {
         for (int i = 0; i < args.length; ++i) {
             if (false) {
@@ -249,6 +352,92 @@ public class Main {
                 if (++i < args.length) { Config.resDirPath = args[i]; }
             } else if (args[i].equals("-c") || args[i].equals("-config")) {
                 if (++i < args.length) { Config.configYaml = args[i]; }
+            } else if (args[i].equals("-converter")) {
+                if (++i < args.length) {
+                    if (Converters.get(args[i]) == null) {
+                        System.err.println("Invalid converter: "+args[i]);
+                        printHelp();
+                        System.exit(3);
+                    }
+                    Config.converter = args[i];
+                }
+            } else if (args[i].equals("-pandoc-server")) {
+                if (++i < args.length) { Config.pandocServerUrl = args[i]; }
+            } else if (args[i].equals("-pandoc-workers")) {
+                if (++i < args.length) { Config.pandocWorkers = parseCount(args[i]); }
+            } else if (args[i].equals("-j") || args[i].equals("-jobs")) {
+                if (++i < args.length) { Config.jobs = parseCount(args[i]); }
+            } else if (args[i].equals("-watch-backend")) {
+                if (++i < args.length) {
+                    if (WatchBackends.get(args[i]) == null) {
+                        System.err.println("Invalid watch backend: "+args[i]);
+                        printHelp();
+                        System.exit(3);
+                    }
+                    Config.watchBackend = args[i];
+                }
+            } else if (args[i].equals("-poll-interval")) {
+                if (++i < args.length) { Config.pollMillis = parseCount(args[i]); }
+            } else if (args[i].equals("-max-watches")) {
+                if (++i < args.length) { Config.maxWatches = parseCount(args[i]); }
+            } else if (args[i].equals("-watch-quiet")) {
+                if (++i < args.length) { Config.watchQuietMillis = parseCount(args[i]); }
+            } else if (args[i].equals("-watch-max-delay")) {
+                if (++i < args.length) { Config.watchMaxDelayMillis = parseCount(args[i]); }
+            } else if (args[i].equals("-max-procs")) {
+                if (++i < args.length) { Config.maxProcesses = parseCount(args[i]); }
+            } else if (args[i].equals("-process-timeout")) {
+                if (++i < args.length) { Config.processTimeoutMillis = parseCount(args[i]) * 1000L; }
+            } else if (args[i].equals("-cache")) {
+                if (++i < args.length) { Config.renderCacheDir = args[i]; }
+            } else if (args[i].equals("-cache-size")) {
+                if (++i < args.length) { Config.renderCacheBytes = parseCount(args[i]) * (1L << 20); }
+            } else if (args[i].equals("-stats")) {
+                Config.stats = true;
+            } else if (args[i].equals("-stats-slowest")) {
+                if (++i < args.length) { Config.statsSlowest = parseCount(args[i]); }
+            } else if (args[i].equals("-assets")) {
+                if (++i < args.length) {
+                    if (!AssetMirror.isMode(args[i])) {
+                        System.err.println("Invalid asset mode: "+args[i]);
+                        printHelp();
+                        System.exit(3);
+                    }
+                    Config.assetMode = args[i];
+                }
+            } else if (args[i].equals("-bundle")) {
+                Config.bundleAssets = true;
+            } else if (args[i].equals("-inline-css")) {
+                if (++i < args.length) { Config.inlineCssBytes = parseCount(args[i]) * 1024L; }
+            } else if (args[i].equals("-gzip")) {
+                Config.gzip = true;
+            } else if (args[i].equals("-gzip-min")) {
+                if (++i < args.length) { Config.gzipMinBytes = parseCount(args[i]); }
+            } else if (args[i].equals("-archive")) {
+                if (++i < args.length) {
+                    if (!PublishArchive.isFormat(args[i])) {
+                        System.err.println("Invalid archive (.zip, .tar, .tar.gz or .tgz): "+args[i]);
+                        printHelp();
+                        System.exit(3);
+                    }
+                    Config.archivePath = args[i];
+                }
+            } else if (args[i].equals("-changeset")) {
+                if (++i < args.length) { Config.changesetPath = args[i]; }
+            } else if (args[i].equals("-prune")) {
+                Config.prune = true;
+            } else if (args[i].equals("-search")) {
+                Config.search = true;
+            } else if (args[i].equals("-serve")) {
+                Config.serve = true;
+            } else if (args[i].equals("-port")) {
+                if (++i < args.length) { Config.port = parseCount(args[i]); }
+            } else if (args[i].equals("-bind")) {
+                if (++i < args.length) { Config.bindAddress = args[i]; }
+            } else if (args[i].equals("-pipe")) {
+                Config.pipeMarkdown = true;
+            } else if (args[i].equals("-keep-md")) {
+                Config.keepMarkdown = true;
             } else if (args[i].equals("-w") || args[i].equals("-watch")) {
                 Config.watchMode = true;
             } else if (args[i].equals("-s") || args[i].equals("-silent")) {
@@ -287,11 +476,25 @@ public class Main {
         }
 
         System.err.printf("__________ md2html configs __________\n");
-        System.err.printf("    Watch  Mode:             %s\n", Config.watchMode ? "ON" : "OFF");
+        System.err.printf("    Watch  Mode:             %s\n", Config.watchMode || Config.serve ? "ON ("+Config.watchBackend+")" : "OFF");
+        System.err.printf("    Serve  Mode:             %s\n", Config.serve ? "ON ("+(Config.bindAddress != null ? Config.bindAddress : "localhost")+":"+Config.port+")" : "OFF");
         System.err.printf("    Silent Mode:             %s\n", Config.silentMode ? "ON" : "OFF");
         System.err.printf("    Verbose Mode:            %s\n", Config.verboseMode ? "ON" : "OFF");
         System.err.printf("    Expand Markdown?:        %s\n", Config.expandMarkdown ? "TRUE" : "FALSE");
         System.err.printf("    Fold   Markdown?:        %s\n", Config.foldMarkdown ? "TRUE" : "FALSE");
+        System.err.printf("    Parallel Jobs:           %d\n", Config.jobs);
+        System.err.printf("    Converter:               %s\n", Config.converter);
+        System.err.printf("    Pipe   Markdown?:        %s\n", !Config.pipeMarkdown ? "FALSE"
+                : Config.keepMarkdown ? "TRUE (keep .md)" : "TRUE");
+        System.err.printf("    Assets:                  %s\n", Config.assetMode);
+        System.err.printf("    Bundle Assets?:          %s\n", !Config.bundleAssets ? "FALSE"
+                : Config.inlineCssBytes > 0 ? "TRUE (inline css up to "+Config.inlineCssBytes/1024+" KB)" : "TRUE");
+        System.err.printf("    Gzip Sidecars?:          %s\n", Config.gzip ? "TRUE (from "+Config.gzipMinBytes+" bytes)" : "FALSE");
+        System.err.printf("    Archive:                 %s\n", Config.archivePath == null ? "NO" : Config.archivePath);
+        System.err.printf("    Changeset:               %s\n", Config.changesetPath == null ? "NO" : Config.changesetPath);
+        System.err.printf("    Prune Outputs?:          %s\n", Config.prune ? "TRUE" : "FALSE");
+        System.err.printf("    Search Index?:           %s\n", Config.search ? "TRUE" : "FALSE");
+        System.err.printf("    Render Cache:            %s\n", Config.renderCacheDir == null ? "OFF" : Config.renderCacheDir);
         System.err.printf("    Configuration file: %s", Config.configYaml == null ? "NO EXTRA" : Config.configYaml);
         System.err.printf("-------------------------------------\n");
     }
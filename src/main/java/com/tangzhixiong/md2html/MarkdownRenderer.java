@@ -0,0 +1,846 @@
+package com.tangzhixiong.md2html;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// a small, pandoc-flavored Markdown to HTML renderer, used by NativeConverter.
+// covers what md2html users typically write: headings (with attributes), paragraphs, emphasis, code spans
+// and fenced code (with attributes), lists, definition lists (for folding), block quotes, pipe tables,
+// links/images (inline and reference), raw HTML, tex math ($..$, $$..$$) and east asian line breaks.
+public class MarkdownRenderer {
+    private static final Pattern atxHeading = Pattern.compile("^ {0,3}(#{1,6})(?:[ \\t]+(.*?))?[ \\t#]*$");
+    private static final Pattern setextUnderline = Pattern.compile("^ {0,3}(=+|-+)[ \\t]*$");
+    private static final Pattern horizontalRule = Pattern.compile("^ {0,3}([-*_])([ \\t]*\\1){2,}[ \\t]*$");
+    private static final Pattern fence = Pattern.compile("^( {0,3})(`{3,}|~{3,})[ \\t]*(.*)$");
+    private static final Pattern bulletItem = Pattern.compile("^( {0,3})([-*+])([ \\t]+)(.*)$");
+    private static final Pattern orderedItem = Pattern.compile("^( {0,3})(\\d{1,9}|#)([.)])([ \\t]+)(.*)$");
+    private static final Pattern definitionMarker = Pattern.compile("^ {0,3}[:~]([ \\t]+)(.*)$");
+    private static final Pattern referenceDefinition = Pattern.compile(
+            "^ {0,3}\\[([^\\]]+)\\]:[ \\t]*<?([^\\s>]+)>?(?:[ \\t]+[\"'(](.*)[\"')])?[ \\t]*$");
+    private static final Pattern tableDelimiter = Pattern.compile("^[ \\t]*\\|?[ \\t]*:?-+:?[ \\t]*(\\|[ \\t]*:?-+:?[ \\t]*)*\\|?[ \\t]*$");
+    private static final Pattern htmlBlockStart = Pattern.compile("^ {0,3}<(?:!--|/?(?i:address|article|aside|blockquote|center|details|div|dl|fieldset|figure|footer|form|h[1-6]|header|hr|iframe|nav|ol|p|pre|script|section|style|table|ul)(?:[\\s/>]|$))");
+    private static final Pattern entity = Pattern.compile("^&(?:#[0-9]+|#[xX][0-9a-fA-F]+|[a-zA-Z][a-zA-Z0-9]*);");
+    private static final Pattern rawTag = Pattern.compile("^<(?:/?[a-zA-Z][a-zA-Z0-9-]*(?:\\s[^<>]*)?/?|!--.*?--)>", Pattern.DOTALL);
+    private static final Pattern autoLink = Pattern.compile("^<((?:https?|ftp|mailto):[^\\s<>]+|[^\\s<>@]+@[^\\s<>@]+\\.[a-zA-Z]+)>");
+    private static final String escapable = "\\`*_{}[]()>#+-.!|~^$\"'<&:@= ";
+
+    private final HashMap<String, String[]> references = new HashMap<>();
+    private final HashMap<String, Integer> usedIds = new HashMap<>();
+    private boolean hasMath = false;
+    // first pass: only reference definitions are picked up, nothing is rendered
+    private boolean collecting = false;
+
+    public boolean hasMath() {
+        return hasMath;
+    }
+
+    public String render(List<String> lines) {
+        ArrayList<String> body = new ArrayList<>();
+        for (String line: lines) {
+            body.add(expandTabs(line));
+        }
+        // reference definitions are where a paragraph could start (not in code or html blocks), and
+        // links may come before them: the blocks are walked once to find them, then rendered
+        collecting = true;
+        renderBlocks(body, new StringBuilder(), false);
+        collecting = false;
+        usedIds.clear();
+        hasMath = false;
+        // implicit_header_references: [Heading] links to its section
+        for (int k = 0; k < body.size(); ++k) {
+            String text = null;
+            Matcher m = atxHeading.matcher(body.get(k));
+            if (m.matches() && m.group(2) != null) {
+                text = m.group(2).trim();
+            } else if (k+1 < body.size() && !isBlank(body.get(k)) && (k == 0 || isBlank(body.get(k-1)))
+                    && setextUnderline.matcher(body.get(k+1)).matches()) {
+                text = body.get(k).trim();
+            }
+            if (text == null || text.endsWith("}")) { continue; }
+            String label = normalizeLabel(text);
+            if (!references.containsKey(label)) {
+                references.put(label, new String[]{"#"+identifier(inline(text)), null});
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        renderBlocks(body, out, false);
+        return out.toString();
+    }
+
+    // ---------------------------------------------------------------- blocks
+
+    private void renderBlocks(List<String> lines, StringBuilder out, boolean tight) {
+        int i = 0;
+        int n = lines.size();
+        while (i < n) {
+            String line = lines.get(i);
+            if (isBlank(line)) { ++i; continue; }
+
+            Matcher m;
+            if ((m = fence.matcher(line)).matches()) {
+                i = fencedCode(lines, i, m, out);
+            } else if ((m = atxHeading.matcher(line)).matches()) {
+                heading(m.group(1).length(), m.group(2) == null ? "" : m.group(2), out);
+                ++i;
+            } else if (horizontalRule.matcher(line).matches()) {
+                out.append("<hr />\n");
+                ++i;
+            } else if (line.startsWith("    ")) {
+                i = indentedCode(lines, i, out);
+            } else if (line.trim().startsWith(">")) {
+                i = blockQuote(lines, i, out);
+            } else if (bulletItem.matcher(line).matches() || orderedItem.matcher(line).matches()) {
+                i = list(lines, i, out);
+            } else if (htmlBlockStart.matcher(line).find()) {
+                while (i < n && !isBlank(lines.get(i))) {
+                    out.append(lines.get(i)).append("\n");
+                    ++i;
+                }
+            } else if (i+1 < n && lines.get(i).contains("|") && tableDelimiter.matcher(lines.get(i+1)).matches()
+                    && lines.get(i+1).contains("-")) {
+                i = table(lines, i, out);
+            } else if (isDefinitionTerm(lines, i)) {
+                i = definitionList(lines, i, out);
+            } else {
+                i = paragraph(lines, i, out, tight);
+            }
+        }
+    }
+
+    private int fencedCode(List<String> lines, int i, Matcher m, StringBuilder out) {
+        String marker = m.group(2);
+        String info = m.group(3).trim();
+        StringBuilder code = new StringBuilder();
+        int j = i+1;
+        for (; j < lines.size(); ++j) {
+            String trimmed = lines.get(j).trim();
+            if (trimmed.length() >= marker.length() && trimmed.charAt(0) == marker.charAt(0)
+                    && trimmed.replace(String.valueOf(marker.charAt(0)), "").isEmpty()) {
+                break;
+            }
+            code.append(escape(lines.get(j))).append("\n");
+        }
+        if (code.length() > 0) { code.setLength(code.length()-1); }
+        String attrs = info.startsWith("{") ? attributes(info.substring(1, info.lastIndexOf('}') > 0 ? info.lastIndexOf('}') : info.length()))
+                : (info.isEmpty() ? "" : " class=\""+escape(info.split("\\s+")[0])+"\"");
+        out.append("<pre").append(attrs).append("><code>").append(code).append("</code></pre>\n");
+        return Math.min(j+1, lines.size());
+    }
+
+    private int indentedCode(List<String> lines, int i, StringBuilder out) {
+        ArrayList<String> code = new ArrayList<>();
+        int j = i;
+        for (; j < lines.size(); ++j) {
+            String line = lines.get(j);
+            if (line.startsWith("    ")) {
+                code.add(line.substring(4));
+            } else if (isBlank(line)) {
+                code.add("");
+            } else {
+                break;
+            }
+        }
+        while (!code.isEmpty() && code.get(code.size()-1).isEmpty()) { code.remove(code.size()-1); }
+        out.append("<pre><code>");
+        for (int k = 0; k < code.size(); ++k) {
+            if (k > 0) { out.append("\n"); }
+            out.append(escape(code.get(k)));
+        }
+        out.append("</code></pre>\n");
+        return j;
+    }
+
+    private void heading(int level, String content, StringBuilder out) {
+        String attrs = "";
+        String text = content.trim();
+        if (text.endsWith("}") && text.lastIndexOf(" {") >= 0) {
+            int idx = text.lastIndexOf(" {");
+            attrs = text.substring(idx+2, text.length()-1);
+            text = text.substring(0, idx).trim();
+        }
+        String html = inline(text);
+        String attrHtml = attributes(attrs);
+        if (!attrHtml.contains(" id=\"")) {
+            attrHtml = " id=\""+uniqueId(identifier(html))+"\""+attrHtml;
+        }
+        out.append("<h").append(level).append(attrHtml).append(">").append(html)
+                .append("</h").append(level).append(">\n");
+    }
+
+    private int blockQuote(List<String> lines, int i, StringBuilder out) {
+        ArrayList<String> inner = new ArrayList<>();
+        int j = i;
+        for (; j < lines.size(); ++j) {
+            String line = lines.get(j);
+            String trimmed = line.trim();
+            if (trimmed.startsWith(">")) {
+                String rest = trimmed.substring(1);
+                inner.add(rest.startsWith(" ") ? rest.substring(1) : rest);
+            } else if (!isBlank(line) && !inner.isEmpty() && !isBlank(inner.get(inner.size()-1))) {
+                inner.add(line); // lazy continuation
+            } else {
+                break;
+            }
+        }
+        out.append("<blockquote>\n");
+        renderBlocks(inner, out, false);
+        out.append("</blockquote>\n");
+        return j;
+    }
+
+    private int list(List<String> lines, int i, StringBuilder out) {
+        boolean ordered = !bulletItem.matcher(lines.get(i)).matches();
+        String start = null;
+        ArrayList<ArrayList<String>> items = new ArrayList<>();
+        boolean loose = false;
+        ArrayList<String> item = null;
+        int contentIndent = 0;
+        boolean sawBlank = false;
+        int j = i;
+        for (; j < lines.size(); ++j) {
+            String line = lines.get(j);
+            Matcher bm = bulletItem.matcher(line);
+            Matcher om = orderedItem.matcher(line);
+            boolean isBullet = bm.matches();
+            boolean isOrdered = !isBullet && om.matches();
+            int indent = leadingSpaces(line);
+            if ((isBullet || isOrdered) && (item == null || indent < contentIndent)) {
+                if (isBullet == ordered) { break; } // a different kind of list starts here
+                if (sawBlank && item != null) { loose = true; }
+                item = new ArrayList<>();
+                items.add(item);
+                if (isBullet) {
+                    contentIndent = bm.group(1).length() + 1 + Math.min(bm.group(3).length(), 4);
+                    item.add(bm.group(4));
+                } else {
+                    if (start == null) { start = om.group(2); }
+                    contentIndent = om.group(1).length() + om.group(2).length() + 1 + Math.min(om.group(4).length(), 4);
+                    item.add(om.group(5));
+                }
+                sawBlank = false;
+                continue;
+            }
+            if (isBlank(line)) {
+                sawBlank = true;
+                item.add("");
+                continue;
+            }
+            if (indent >= contentIndent || indent >= 4) {
+                if (sawBlank) { loose = true; }
+                item.add(line.substring(Math.min(indent, contentIndent)));
+                sawBlank = false;
+                continue;
+            }
+            if (!sawBlank) {
+                item.add(line.trim()); // lazy continuation of a paragraph
+                continue;
+            }
+            break;
+        }
+        // trailing blank lines belong to whatever comes next
+        for (ArrayList<String> it: items) {
+            while (it.size() > 1 && isBlank(it.get(it.size()-1))) { it.remove(it.size()-1); }
+        }
+        if (ordered) {
+            out.append(start == null || start.equals("1") || start.equals("#") ? "<ol>\n" : "<ol start=\""+start+"\">\n");
+        } else {
+            out.append("<ul>\n");
+        }
+        for (ArrayList<String> it: items) {
+            StringBuilder sb = new StringBuilder();
+            renderBlocks(it, sb, !loose);
+            String html = sb.toString();
+            if (html.endsWith("\n")) {
+                html = html.substring(0, html.length()-1);
+            }
+            out.append("<li>").append(html).append("</li>\n");
+        }
+        out.append(ordered ? "</ol>\n" : "</ul>\n");
+        return j;
+    }
+
+    private boolean isDefinitionTerm(List<String> lines, int i) {
+        if (i+1 < lines.size() && definitionMarker.matcher(lines.get(i+1)).matches()) { return true; }
+        return i+2 < lines.size() && isBlank(lines.get(i+1)) && definitionMarker.matcher(lines.get(i+2)).matches();
+    }
+
+    private int definitionList(List<String> lines, int i, StringBuilder out) {
+        out.append("<dl>\n");
+        int j = i;
+        while (j < lines.size() && !isBlank(lines.get(j)) && isDefinitionTerm(lines, j)) {
+            out.append("<dt>").append(inline(lines.get(j).trim())).append("</dt>\n");
+            ++j;
+            boolean loose = isBlank(lines.get(j));
+            if (loose) { ++j; }
+            // one or more definitions
+            while (j < lines.size()) {
+                Matcher m = definitionMarker.matcher(lines.get(j));
+                if (!m.matches()) { break; }
+                ArrayList<String> body = new ArrayList<>();
+                body.add(m.group(2));
+                ++j;
+                boolean sawBlank = false;
+                for (; j < lines.size(); ++j) {
+                    String line = lines.get(j);
+                    if (isBlank(line)) {
+                        sawBlank = true;
+                        body.add("");
+                    } else if (line.startsWith("    ")) {
+                        if (sawBlank) { loose = true; }
+                        body.add(line.substring(4));
+                        sawBlank = false;
+                    } else if (!sawBlank && !definitionMarker.matcher(line).matches()) {
+                        body.add(line.trim());
+                    } else {
+                        break;
+                    }
+                }
+                while (!body.isEmpty() && isBlank(body.get(body.size()-1))) { body.remove(body.size()-1); }
+                StringBuilder sb = new StringBuilder();
+                renderBlocks(body, sb, !loose);
+                String html = sb.toString();
+                if (html.endsWith("\n")) {
+                    html = html.substring(0, html.length()-1);
+                }
+                out.append("<dd>").append(html).append("</dd>\n");
+            }
+            // blank lines between entries of the same list
+            int k = j;
+            while (k < lines.size() && isBlank(lines.get(k))) { ++k; }
+            if (k < lines.size() && isDefinitionTerm(lines, k)) {
+                j = k;
+            }
+        }
+        out.append("</dl>\n");
+        return j;
+    }
+
+    private int table(List<String> lines, int i, StringBuilder out) {
+        List<String> header = splitRow(lines.get(i));
+        List<String> delimiters = splitRow(lines.get(i+1));
+        String[] aligns = new String[delimiters.size()];
+        for (int k = 0; k < aligns.length; ++k) {
+            String d = delimiters.get(k).trim();
+            boolean left = d.startsWith(":"), right = d.endsWith(":");
+            aligns[k] = left && right ? "center" : (right ? "right" : (left ? "left" : null));
+        }
+        out.append("<table>\n<thead>\n<tr class=\"header\">\n");
+        for (int k = 0; k < header.size(); ++k) {
+            out.append("<th").append(alignStyle(aligns, k)).append(">").append(inline(header.get(k).trim())).append("</th>\n");
+        }
+        out.append("</tr>\n</thead>\n<tbody>\n");
+        int j = i+2;
+        for (boolean odd = true; j < lines.size() && !isBlank(lines.get(j)) && lines.get(j).contains("|"); ++j, odd = !odd) {
+            List<String> cells = splitRow(lines.get(j));
+            out.append("<tr class=\"").append(odd ? "odd" : "even").append("\">\n");
+            for (int k = 0; k < cells.size(); ++k) {
+                out.append("<td").append(alignStyle(aligns, k)).append(">").append(inline(cells.get(k).trim())).append("</td>\n");
+            }
+            out.append("</tr>\n");
+        }
+        out.append("</tbody>\n</table>\n");
+        return j;
+    }
+
+    private static String alignStyle(String[] aligns, int k) {
+        return k < aligns.length && aligns[k] != null ? " style=\"text-align: "+aligns[k]+";\"" : "";
+    }
+
+    private static List<String> splitRow(String row) {
+        String s = row.trim();
+        if (s.startsWith("|")) { s = s.substring(1); }
+        if (s.endsWith("|") && !s.endsWith("\\|")) { s = s.substring(0, s.length()-1); }
+        ArrayList<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        for (int k = 0; k < s.length(); ++k) {
+            char c = s.charAt(k);
+            if (c == '\\' && k+1 < s.length() && s.charAt(k+1) == '|') {
+                cell.append('|');
+                ++k;
+            } else if (c == '|') {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    private int paragraph(List<String> lines, int i, StringBuilder out, boolean tight) {
+        // leading reference definitions aren't part of the paragraph; what follows them is a block
+        // of its own
+        Matcher m;
+        int start = i;
+        while (i < lines.size() && (m = referenceDefinition.matcher(lines.get(i))).matches()) {
+            if (collecting) {
+                references.put(normalizeLabel(m.group(1)), new String[]{m.group(2), m.group(3)});
+            }
+            ++i;
+        }
+        if (i > start) {
+            return i;
+        }
+        StringBuilder text = new StringBuilder();
+        int j = i;
+        for (; j < lines.size(); ++j) {
+            String line = lines.get(j);
+            if (isBlank(line)) { break; }
+            if (j > i) {
+                if (fence.matcher(line).matches() || atxHeading.matcher(line).matches()
+                        || line.trim().startsWith(">") || horizontalRule.matcher(line).matches() && !setextUnderline.matcher(line).matches()) {
+                    break;
+                }
+                Matcher sm = setextUnderline.matcher(line);
+                if (sm.matches() && j == i+1) {
+                    heading(sm.group(1).charAt(0) == '=' ? 1 : 2, text.toString(), out);
+                    return j+1;
+                }
+                text.append("\n");
+            }
+            text.append(line.trim().isEmpty() ? line : stripLeading(line));
+        }
+        String html = inline(text.toString());
+        if (tight) {
+            out.append(html).append("\n");
+        } else {
+            out.append("<p>").append(html).append("</p>\n");
+        }
+        return j;
+    }
+
+    // ---------------------------------------------------------------- inlines
+
+    public String inline(String text) {
+        if (collecting) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\': {
+                    if (i+1 < n && text.charAt(i+1) == '\n') {
+                        out.append("<br />\n");
+                        i += 2;
+                        continue;
+                    }
+                    if (i+1 < n && escapable.indexOf(text.charAt(i+1)) >= 0) {
+                        char next = text.charAt(i+1);
+                        out.append(next == ' ' ? "&#160;" : escape(String.valueOf(next)));
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                }
+                case '`': {
+                    int run = countRun(text, i, '`');
+                    int close = findRun(text, i+run, '`', run);
+                    if (close < 0) {
+                        out.append(text, i, i+run);
+                        i += run;
+                        continue;
+                    }
+                    String code = text.substring(i+run, close).replace('\n', ' ').trim();
+                    i = close+run;
+                    String attrs = "";
+                    if (i < n && text.charAt(i) == '{') {
+                        int end = text.indexOf('}', i);
+                        if (end > 0) {
+                            attrs = attributes(text.substring(i+1, end));
+                            i = end+1;
+                        }
+                    }
+                    out.append("<code").append(attrs).append(">").append(escape(code)).append("</code>");
+                    continue;
+                }
+                case '$': {
+                    int consumed = math(text, i, out);
+                    if (consumed > 0) {
+                        i += consumed;
+                        continue;
+                    }
+                    break;
+                }
+                case '!': {
+                    if (i+1 < n && text.charAt(i+1) == '[') {
+                        int consumed = link(text, i+1, out, true);
+                        if (consumed > 0) {
+                            i += 1+consumed;
+                            continue;
+                        }
+                    }
+                    break;
+                }
+                case '[': {
+                    int consumed = link(text, i, out, false);
+                    if (consumed > 0) {
+                        i += consumed;
+                        continue;
+                    }
+                    break;
+                }
+                case '<': {
+                    Matcher am = autoLink.matcher(text.substring(i));
+                    if (am.find()) {
+                        String target = am.group(1);
+                        String href = target.contains(":") ? target : "mailto:"+target;
+                        out.append("<a href=\"").append(escape(href)).append("\">").append(escape(target)).append("</a>");
+                        i += am.end();
+                        continue;
+                    }
+                    Matcher tm = rawTag.matcher(text.substring(i));
+                    if (tm.find()) {
+                        out.append(tm.group());
+                        i += tm.end();
+                        continue;
+                    }
+                    break;
+                }
+                case '&': {
+                    Matcher em = entity.matcher(text.substring(i, Math.min(n, i+12)));
+                    if (em.find()) {
+                        out.append(em.group());
+                        i += em.end();
+                        continue;
+                    }
+                    break;
+                }
+                case '*': case '_': case '~': case '^': {
+                    int consumed = emphasis(text, i, out);
+                    if (consumed > 0) {
+                        i += consumed;
+                        continue;
+                    }
+                    break;
+                }
+                case '-': {
+                    if (text.startsWith("---", i)) { out.append("&#8212;"); i += 3; continue; }
+                    if (text.startsWith("--", i)) { out.append("&#8211;"); i += 2; continue; }
+                    break;
+                }
+                case '.': {
+                    if (text.startsWith("...", i)) { out.append("&#8230;"); i += 3; continue; }
+                    break;
+                }
+                case ' ': {
+                    int run = countRun(text, i, ' ');
+                    if (run >= 2 && i+run < n && text.charAt(i+run) == '\n') {
+                        out.append("<br />\n");
+                        i += run+1;
+                        continue;
+                    }
+                    break;
+                }
+                case '\n': {
+                    // east_asian_line_breaks: a newline between two wide characters is ignored
+                    if (i > 0 && i+1 < n && isEastAsian(text.charAt(i-1)) && isEastAsian(text.charAt(i+1))) {
+                        ++i;
+                        continue;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            appendEscaped(c, out);
+            ++i;
+        }
+        return out.toString();
+    }
+
+    private int math(String text, int i, StringBuilder out) {
+        int n = text.length();
+        if (text.startsWith("$$", i)) {
+            int end = text.indexOf("$$", i+2);
+            if (end < 0) { return 0; }
+            hasMath = true;
+            out.append("<span class=\"math display\">\\[").append(escape(text.substring(i+2, end))).append("\\]</span>");
+            return end+2-i;
+        }
+        if (i+1 >= n || Character.isWhitespace(text.charAt(i+1))) { return 0; }
+        for (int j = i+1; j < n; ++j) {
+            char c = text.charAt(j);
+            if (c == '\\') { ++j; continue; }
+            if (c == '$') {
+                if (Character.isWhitespace(text.charAt(j-1))) { return 0; }
+                if (j+1 < n && Character.isDigit(text.charAt(j+1))) { return 0; }
+                hasMath = true;
+                out.append("<span class=\"math inline\">\\(").append(escape(text.substring(i+1, j))).append("\\)</span>");
+                return j+1-i;
+            }
+            if (c == '\n' && j+1 < n && text.charAt(j+1) == '\n') { return 0; }
+        }
+        return 0;
+    }
+
+    // returns number of chars consumed starting at '[' (0 if not a link)
+    private int link(String text, int i, StringBuilder out, boolean image) {
+        int close = matchingBracket(text, i);
+        if (close < 0) { return 0; }
+        String label = text.substring(i+1, close);
+        String url = null, title = null;
+        int end = close+1;
+        if (end < text.length() && text.charAt(end) == '(') {
+            int paren = matchingParen(text, end);
+            if (paren < 0) { return 0; }
+            String dest = text.substring(end+1, paren).trim();
+            int space = indexOfWhitespace(dest);
+            if (space > 0) {
+                url = dest.substring(0, space);
+                String t = dest.substring(space).trim();
+                if (t.length() >= 2) { title = t.substring(1, t.length()-1); }
+            } else {
+                url = dest;
+            }
+            if (url.startsWith("<") && url.endsWith(">")) { url = url.substring(1, url.length()-1); }
+            end = paren+1;
+        } else {
+            String ref = label;
+            if (end < text.length() && text.charAt(end) == '[') {
+                int refClose = text.indexOf(']', end);
+                if (refClose > 0) {
+                    String explicit = text.substring(end+1, refClose);
+                    if (!explicit.isEmpty()) { ref = explicit; }
+                    end = refClose+1;
+                }
+            }
+            String[] def = references.get(normalizeLabel(ref));
+            if (def == null) { return 0; }
+            url = def[0];
+            title = def[1];
+        }
+        if (image) {
+            out.append("<img src=\"").append(escape(url)).append("\" alt=\"").append(escape(plainText(inline(label)))).append("\"");
+            if (title != null) { out.append(" title=\"").append(escape(title)).append("\""); }
+            out.append(" />");
+        } else {
+            out.append("<a href=\"").append(escape(url)).append("\"");
+            if (title != null) { out.append(" title=\"").append(escape(title)).append("\""); }
+            out.append(">").append(inline(label)).append("</a>");
+        }
+        return end-i;
+    }
+
+    private int emphasis(String text, int i, StringBuilder out) {
+        char c = text.charAt(i);
+        int run = countRun(text, i, c);
+        int n = text.length();
+        if (i+run >= n || Character.isWhitespace(text.charAt(i+run))) { return 0; }
+        if (c == '_' && i > 0 && Character.isLetterOrDigit(text.charAt(i-1))) { return 0; }
+        String open, close;
+        int len;
+        if (c == '~') {
+            len = run >= 2 ? 2 : 1;
+            open = len == 2 ? "<del>" : "<sub>";
+            close = len == 2 ? "</del>" : "</sub>";
+        } else if (c == '^') {
+            len = 1;
+            open = "<sup>";
+            close = "</sup>";
+        } else {
+            len = run >= 3 ? 3 : run;
+            open = len == 3 ? "<strong><em>" : (len == 2 ? "<strong>" : "<em>");
+            close = len == 3 ? "</em></strong>" : (len == 2 ? "</strong>" : "</em>");
+        }
+        int j = i+len;
+        while (true) {
+            j = text.indexOf(c, j);
+            if (j < 0) { return 0; }
+            int closing = countRun(text, j, c);
+            boolean precededBySpace = Character.isWhitespace(text.charAt(j-1));
+            boolean followedByWord = c == '_' && j+closing < n && Character.isLetterOrDigit(text.charAt(j+closing));
+            if (j > i+len && closing == len && !precededBySpace && !followedByWord) { break; }
+            j += closing;
+        }
+        String inner = text.substring(i+len, j);
+        if ((c == '^' || (c == '~' && len == 1)) && (inner.contains(" ") || inner.contains("\n"))) { return 0; }
+        out.append(open).append(inline(inner)).append(close);
+        return j+len-i;
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private static String attributes(String spec) {
+        StringBuilder classes = new StringBuilder();
+        StringBuilder others = new StringBuilder();
+        String id = null;
+        for (String token: spec.trim().split("\\s+")) {
+            if (token.isEmpty()) { continue; }
+            if (token.startsWith("#")) {
+                id = token.substring(1);
+            } else if (token.startsWith(".")) {
+                if (classes.length() > 0) { classes.append(' '); }
+                classes.append(token.substring(1));
+            } else if (token.contains("=")) {
+                int idx = token.indexOf('=');
+                String value = token.substring(idx+1);
+                if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+                    value = value.substring(1, value.length()-1);
+                }
+                others.append(' ').append(token, 0, idx).append("=\"").append(escape(value)).append('"');
+            } else {
+                if (classes.length() > 0) { classes.append(' '); }
+                classes.append(token);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        if (id != null) { sb.append(" id=\"").append(escape(id)).append('"'); }
+        if (classes.length() > 0) { sb.append(" class=\"").append(escape(classes.toString())).append('"'); }
+        sb.append(others);
+        return sb.toString();
+    }
+
+    // pandoc's auto_identifiers
+    private static String identifier(String html) {
+        String plain = plainText(html);
+        StringBuilder sb = new StringBuilder();
+        boolean seenLetter = false;
+        for (int k = 0; k < plain.length(); ++k) {
+            char ch = plain.charAt(k);
+            if (!seenLetter && !Character.isLetter(ch)) { continue; }
+            seenLetter = true;
+            if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '-' || ch == '.') {
+                sb.append(Character.toLowerCase(ch));
+            } else if (Character.isWhitespace(ch)) {
+                sb.append('-');
+            }
+        }
+        return sb.length() == 0 ? "section" : sb.toString();
+    }
+
+    private String uniqueId(String id) {
+        Integer count = usedIds.get(id);
+        if (count == null) {
+            usedIds.put(id, 0);
+            return id;
+        }
+        usedIds.put(id, count+1);
+        return id+"-"+(count+1);
+    }
+
+    public static String plainText(String html) {
+        return html.replaceAll("<[^>]*>", "")
+                .replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+    }
+
+    public static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length()+16);
+        for (int k = 0; k < s.length(); ++k) {
+            appendEscaped(s.charAt(k), sb);
+        }
+        return sb.toString();
+    }
+
+    private static void appendEscaped(char c, StringBuilder sb) {
+        switch (c) {
+            case '<': sb.append("&lt;"); break;
+            case '>': sb.append("&gt;"); break;
+            case '&': sb.append("&amp;"); break;
+            case '"': sb.append("&quot;"); break;
+            default: sb.append(c);
+        }
+    }
+
+    private static boolean isEastAsian(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HALFWIDTH_AND_FULLWIDTH_FORMS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    private static String normalizeLabel(String label) {
+        return label.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isBlank(String line) {
+        return line.trim().isEmpty();
+    }
+
+    private static int leadingSpaces(String line) {
+        int k = 0;
+        while (k < line.length() && line.charAt(k) == ' ') { ++k; }
+        return k;
+    }
+
+    private static String stripLeading(String line) {
+        return line.substring(Math.min(leadingSpaces(line), 3));
+    }
+
+    private static String expandTabs(String line) {
+        if (line.indexOf('\t') < 0) { return line; }
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < line.length(); ++k) {
+            char ch = line.charAt(k);
+            if (ch == '\t') {
+                do { sb.append(' '); } while (sb.length() % 4 != 0);
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int countRun(String text, int i, char c) {
+        int k = i;
+        while (k < text.length() && text.charAt(k) == c) { ++k; }
+        return k-i;
+    }
+
+    private static int findRun(String text, int from, char c, int length) {
+        for (int k = from; k < text.length(); ++k) {
+            if (text.charAt(k) == c) {
+                int run = countRun(text, k, c);
+                if (run == length) { return k; }
+                k += run-1;
+            }
+        }
+        return -1;
+    }
+
+    private static int matchingBracket(String text, int i) {
+        int depth = 0;
+        for (int k = i; k < text.length(); ++k) {
+            char ch = text.charAt(k);
+            if (ch == '\\') { ++k; continue; }
+            if (ch == '`') {
+                int run = countRun(text, k, '`');
+                int close = findRun(text, k+run, '`', run);
+                if (close > 0) { k = close+run-1; continue; }
+            }
+            if (ch == '[') { ++depth; }
+            if (ch == ']' && --depth == 0) { return k; }
+        }
+        return -1;
+    }
+
+    private static int matchingParen(String text, int i) {
+        int depth = 0;
+        for (int k = i; k < text.length(); ++k) {
+            char ch = text.charAt(k);
+            if (ch == '\\') { ++k; continue; }
+            if (ch == '(') { ++depth; }
+            if (ch == ')' && --depth == 0) { return k; }
+        }
+        return -1;
+    }
+
+    private static int indexOfWhitespace(String s) {
+        for (int k = 0; k < s.length(); ++k) {
+            if (Character.isWhitespace(s.charAt(k))) { return k; }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,189 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// in-process Markdown -> html, no pandoc (and no iconv) subprocess. other markups still go to pandoc.
+public class NativeConverter implements Converter {
+    private static final Pattern yamlKey = Pattern.compile("^[A-Za-z0-9_-]+:");
+
+    private Template template;
+    private long templateStamp = -1;
+    private LinkedHashMap<String, Object> siteMeta;
+    private long siteMetaStamp = -1;
+
+    @Override
+    public String getName() {
+        return "native";
+    }
+
+    @Override
+    public boolean accepts(String ext) {
+        return Bundle.mdExts.contains(ext);
+    }
+
+    @Override
+    public boolean convert(String outputPath, String outputPathHTML) {
+        try {
+            String html = render(readLenient(new File(outputPath)), Converters.variables(outputPath));
+            Files.write(new File(outputPathHTML).toPath(), html.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public boolean convert(String outputPath, PageSource source, String outputPathHTML) {
+        try {
+            String html = render(Utility.toText(source), Converters.variables(outputPath));
+            Files.write(new File(outputPathHTML).toPath(), html.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+            return false;
+        }
+    }
+
+    public String render(String markdown, Map<String, String> variables) throws IOException {
+        ArrayList<String> lines = new ArrayList<>(Arrays.asList(markdown.split("\r?\n", -1)));
+        LinkedHashMap<String, Object> docMeta = extractMetadata(lines);
+
+        MarkdownRenderer renderer = new MarkdownRenderer();
+        String body = renderer.render(lines);
+
+        // metadata is a left-biased union (the document's own blocks come first), -V variables win
+        HashMap<String, Object> vars = new HashMap<>();
+        for (Map.Entry<String, Object> entry: getSiteMeta().entrySet()) {
+            vars.put(entry.getKey(), renderMeta(entry.getValue()));
+        }
+        for (Map.Entry<String, Object> entry: docMeta.entrySet()) {
+            vars.put(entry.getKey(), renderMeta(entry.getValue()));
+        }
+        if (vars.get("title") != null) {
+            vars.put("pagetitle", MarkdownRenderer.plainText(vars.get("title").toString()));
+        }
+        if (renderer.hasMath()) {
+            vars.put("math", Boolean.TRUE);
+        }
+        vars.put("body", body);
+        vars.putAll(variables);
+        return ascii(getTemplate().render(vars));
+    }
+
+    // pandoc title block (% title) or a leading yaml block, removed from lines
+    private static LinkedHashMap<String, Object> extractMetadata(ArrayList<String> lines) {
+        LinkedHashMap<String, Object> meta = new LinkedHashMap<>();
+        if (lines.isEmpty()) { return meta; }
+        if (lines.get(0).startsWith("%")) {
+            String[] keys = {"title", "author", "date"};
+            int k = 0;
+            while (k < keys.length && !lines.isEmpty() && lines.get(0).startsWith("%")) {
+                String value = lines.remove(0).substring(1).trim();
+                if (!value.isEmpty()) { meta.put(keys[k], value); }
+                ++k;
+            }
+            return meta;
+        }
+        // yaml blocks may appear anywhere after a blank line; the first value of a field wins
+        for (int start = 0; start < lines.size(); ++start) {
+            if (!lines.get(start).trim().equals("---") || (start > 0 && !lines.get(start-1).trim().isEmpty())) {
+                continue;
+            }
+            if (start+1 >= lines.size() || !yamlKey.matcher(lines.get(start+1)).find()) {
+                continue;
+            }
+            for (int end = start+1; end < lines.size(); ++end) {
+                String trimmed = lines.get(end).trim();
+                if (trimmed.equals("---") || trimmed.equals("...")) {
+                    List<String> block = lines.subList(start, end+1);
+                    for (Map.Entry<String, Object> entry: YamlLite.parse(block).entrySet()) {
+                        if (!meta.containsKey(entry.getKey())) {
+                            meta.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    block.clear();
+                    break;
+                }
+            }
+        }
+        return meta;
+    }
+
+    // metadata values are markdown, like pandoc: multi-line strings are blocks, others inlines
+    private static Object renderMeta(Object value) {
+        if (value instanceof List) {
+            ArrayList<Object> rendered = new ArrayList<>();
+            for (Object item: (List<?>) value) { rendered.add(renderMeta(item)); }
+            return rendered;
+        }
+        if (value instanceof String) {
+            String s = (String) value;
+            if (s.contains("\n")) {
+                return new MarkdownRenderer().render(Arrays.asList(s.split("\n")));
+            }
+            return new MarkdownRenderer().inline(s);
+        }
+        return value;
+    }
+
+    private synchronized Template getTemplate() throws IOException {
+        File file = new File(Bundle.htmltemplatePath);
+        if (template == null || file.lastModified() != templateStamp) {
+            templateStamp = file.lastModified();
+            template = Template.compile(readLenient(file));
+        }
+        return template;
+    }
+
+    private synchronized Map<String, Object> getSiteMeta() throws IOException {
+        File file = new File(Bundle.dotmd2htmlymlPath);
+        if (siteMeta == null || file.lastModified() != siteMetaStamp) {
+            siteMetaStamp = file.lastModified();
+            siteMeta = file.exists() ? YamlLite.parse(Arrays.asList(readLenient(file).split("\r?\n")))
+                    : new LinkedHashMap<String, Object>();
+        }
+        return siteMeta;
+    }
+
+    // utf-8, silently dropping invalid sequences (what Utility.clean does for pandoc)
+    public static String readLenient(File file) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.IGNORE)
+                .onUnmappableCharacter(CodingErrorAction.IGNORE);
+        try {
+            return decoder.decode(ByteBuffer.wrap(Files.readAllBytes(file.toPath()))).toString();
+        } catch (CharacterCodingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // like pandoc's --ascii: non-ascii characters become numeric entities
+    private static String ascii(String html) {
+        StringBuilder sb = null;
+        for (int k = 0; k < html.length(); ++k) {
+            char c = html.charAt(k);
+            if (c < 128) {
+                if (sb != null) { sb.append(c); }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(html.length()+64);
+                sb.append(html, 0, k);
+            }
+            int cp = html.codePointAt(k);
+            sb.append("&#").append(cp).append(';');
+            k += Character.charCount(cp)-1;
+        }
+        return sb == null ? html : sb.toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+
+// java.nio WatchService (inotify, ...), one key per directory, see Bundle.register
+public class NativeWatchBackend implements WatchBackend {
+    @Override
+    public String getName() {
+        return "native";
+    }
+
+    @Override
+    public void watch(TreeChanges changes) throws Exception {
+        while (true) {
+            WatchKey key = null;
+            try {
+                key = Bundle.watchService.take();
+                if (key == null) {
+                    throw new InterruptedException();
+                }
+                if (!Bundle.key2dir.containsKey(key)) {
+                    continue; // directory removed in the meantime
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            String dir = Bundle.key2dir.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changes.overflow(dir);
+                    continue;
+                }
+                @SuppressWarnings (value="unchecked")
+                final File hit = new File( dir + File.separator +                           // dirname
+                                ((WatchEvent<Path>) event).context().toFile().getName());   // basename
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    changes.deleted(hit.getPath());
+                } else {
+                    changes.changed(hit);
+                }
+            }
+            changes.flush();
+            if (!key.reset()) {
+                // its directory is gone
+                Bundle.key2dir.remove(key);
+                if (Config.srcDirPath.equals(dir)) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// the site listing, once, as one small json file per directory (instead of a 'files:' list in
+// .md2html.yml, which went into every page). mirrors the source tree under _md2html/nav:
+//
+//      _md2html/nav/index.json             {"dir":"","dirs":["include/"],"files":["README.md"]}
+//      _md2html/nav/include/index.json     {"dir":"include/","dirs":[],"files":["a.md",...]}
+//
+// main.js fetches the shards it needs (listDir), when it needs them.
+public class NavIndex {
+    public static final String navDirName = "nav";
+    public static final String shardName = "index.json";
+
+    public static String getNavPath() {
+        return Bundle.resourcePath+File.separator+navDirName;
+    }
+
+    // writes shards that changed, drops shards of directories that are gone; returns #shards written
+    public static int write() {
+        TreeMap<String, TreeSet<String>> dirs = new TreeMap<>();
+        TreeMap<String, TreeSet<String>> files = new TreeMap<>();
+        dirs.put("", new TreeSet<String>());
+        files.put("", new TreeSet<String>());
+        for (String entry: Utility.listing()) {
+            String path = entry.replace('\\', '/');
+            boolean isDir = path.endsWith("/");
+            if (isDir) {
+                path = path.substring(0, path.length()-1);
+            }
+            int idx = path.lastIndexOf('/');
+            String parent = idx < 0 ? "" : path.substring(0, idx+1);
+            String name = path.substring(idx+1);
+            if (isDir) {
+                add(dirs, parent, name+"/");
+                add(dirs, path+"/", null);
+                add(files, path+"/", null);
+            } else {
+                add(files, parent, name);
+                add(dirs, parent, null);
+            }
+        }
+
+        int written = 0;
+        HashSet<String> shards = new HashSet<>();
+        for (String dir: dirs.keySet()) {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"dir\":").append(Json.quote(dir));
+            json.append(",\"dirs\":");
+            array(json, dirs.get(dir));
+            json.append(",\"files\":");
+            array(json, files.containsKey(dir) ? files.get(dir) : Collections.<String>emptySet());
+            json.append("}\n");
+            File shard = new File(getNavPath()+File.separator+dir.replace('/', File.separatorChar)+shardName);
+            shards.add(shard.getAbsolutePath());
+            if (Utility.writeIfChanged(shard, json.toString().getBytes(StandardCharsets.UTF_8))) {
+                ++written;
+            }
+        }
+        prune(new File(getNavPath()), shards);
+        return written;
+    }
+
+    private static void add(TreeMap<String, TreeSet<String>> map, String key, String value) {
+        TreeSet<String> set = map.get(key);
+        if (set == null) {
+            set = new TreeSet<>();
+            map.put(key, set);
+        }
+        if (value != null) {
+            set.add(value);
+        }
+    }
+
+    private static void array(StringBuilder json, Collection<String> items) {
+        json.append('[');
+        boolean first = true;
+        for (String item: items) {
+            if (!first) { json.append(','); }
+            json.append(Json.quote(item));
+            first = false;
+        }
+        json.append(']');
+    }
+
+    // returns true if dir is empty afterwards
+    private static boolean prune(File dir, Set<String> keep) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return false;
+        }
+        boolean empty = true;
+        for (File entry: entries) {
+            boolean removed = entry.isDirectory()
+                    ? prune(entry, keep) && entry.delete()
+                    : !keep.contains(entry.getAbsolutePath()) && entry.delete();
+            if (!removed) {
+                empty = false;
+            }
+        }
+        return empty;
+    }
+}
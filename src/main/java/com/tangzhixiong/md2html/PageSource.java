@@ -0,0 +1,9 @@
+package com.tangzhixiong.md2html;
+
+import java.io.IOException;
+
+// the text of a page in pipe mode ('-pipe'): produced on demand (usually by expanding includes)
+// instead of being read back from dst/dir/file.md. can only be written out once.
+public interface PageSource {
+    void writeTo(LineSink sink) throws IOException;
+}
@@ -0,0 +1,104 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+
+// the original backend: one pandoc process per document
+public class PandocConverter implements Converter {
+    @Override
+    public String getName() {
+        return "pandoc";
+    }
+
+    @Override
+    public boolean accepts(String ext) {
+        return Bundle.markupExts.contains(ext);
+    }
+
+    // outputPathHTML == null: read the page from stdin and write html to stdout
+    public ArrayList<String> buildCommand(String outputPath, String outputPathHTML) {
+        ArrayList<String> cmds = new ArrayList<>();
+        cmds.add( "pandoc" ); cmds.add( "-S" ); cmds.add( "-s" );
+        cmds.add( "--ascii" );
+        cmds.add( "--mathjax" );
+        Map<String, String> vars = Converters.variables(outputPath);
+        for (Map.Entry<String, String> var: vars.entrySet()) {
+            cmds.add( "--variable="+var.getKey()+":"+var.getValue() );
+        }
+        cmds.add( "--template="+Bundle.htmltemplatePath );
+        if ("true".equals(vars.get("ismarkdown"))) {
+            cmds.add( "--from=markdown+abbreviations+east_asian_line_breaks+emoji" );
+            if (outputPathHTML != null) {
+                cmds.add( outputPath );
+                cmds.add( Bundle.dotmd2htmlymlPath );
+            }
+        } else if (outputPathHTML != null) {
+            cmds.add( outputPath );
+        }
+        if (outputPathHTML != null) {
+            cmds.add( "--output="+outputPathHTML );
+        }
+        return cmds;
+    }
+
+    @Override
+    public boolean convert(String outputPath, String outputPathHTML) {
+        BuildStats.Span span = BuildStats.begin("clean", outputPath);
+        Utility.clean(outputPath);
+        BuildStats.end(span);
+        // pandoc's own messages are collected instead of inherited, so they stay next to our [P] line
+        return run(outputPath, buildCommand(outputPath, outputPathHTML), null, null);
+    }
+
+    // markdown pages go through stdin (already valid utf-8, so no iconv either), html comes back on stdout
+    @Override
+    public boolean convert(String outputPath, final PageSource source, String outputPathHTML) {
+        if (!Bundle.mdExts.contains(Utility.getExt(outputPath).toLowerCase())) {
+            return Converter.super.convert(outputPath, source, outputPathHTML);
+        }
+        // expanded into stdin as it is read, on the worker's thread (Subprocesses writes stdin there):
+        // its log lines stay in the worker's buffer, it is done (its include edges too) when we
+        // return, and the page is never held in memory as a whole
+        try (OutputStream html = new BufferedOutputStream(new FileOutputStream(outputPathHTML))) {
+            return run(outputPath, buildCommand(outputPath, null), new Subprocesses.Input() {
+                @Override
+                public void writeTo(OutputStream stdin) throws IOException {
+                    source.writeTo(Utility.lineWriter(stdin, StandardCharsets.UTF_8));
+                    // then .md2html.yml, as the second input file would be
+                    stdin.write('\n');
+                    File yml = new File(Bundle.dotmd2htmlymlPath);
+                    if (yml.isFile()) {
+                        Files.copy(yml.toPath(), stdin);
+                    }
+                }
+            }, html);
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+            return false;
+        }
+    }
+
+    // one pandoc job, failures are logged against outputPath
+    private static boolean run(String outputPath, ArrayList<String> cmds, Subprocesses.Input stdin, OutputStream stdout) {
+        try {
+            Subprocesses.Result result = Subprocesses.run(cmds, stdin, stdout);
+            if (!result.messages.isEmpty()) {
+                Utility.log("%s", result.messages);
+            }
+            if (!result.succeeded()) {
+                Utility.log("[X] %s: %s\n", outputPath, result.describe("pandoc"));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+        } catch (InterruptedException e) {
+            // cancelled (watch mode), the process is gone already
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,344 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+// keeps a few pandoc-server processes on localhost and posts documents to them, instead of forking
+// one pandoc per document. with '-pandoc-server <url>' it talks to an existing server (or a stub) instead.
+// markdown goes to the workers; whatever they can't do (other markups, dead workers) falls back to pandoc.
+public class PandocServerConverter implements Converter {
+    private static final int connectTimeout = 2000;
+    private static final int readTimeout = 10000;
+    private static final long healthCheckPeriod = 5000;
+
+    // the worker answered, just not with a page: it is fine, the document isn't
+    private static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Worker {
+        final String url;
+        Process process; // null for external servers
+        Worker(String url, Process process) {
+            this.url = url;
+            this.process = process;
+        }
+    }
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final ArrayList<Worker> workers = new ArrayList<>();
+    private final Set<Worker> down = Collections.newSetFromMap(new ConcurrentHashMap<Worker, Boolean>());
+    private ScheduledExecutorService healthChecker;
+    private boolean started = false;
+    private boolean available = false;
+    private String template;
+    private long templateStamp = -1;
+
+    @Override
+    public String getName() {
+        return "pandoc-server";
+    }
+
+    @Override
+    public boolean accepts(String ext) {
+        return Bundle.markupExts.contains(ext);
+    }
+
+    @Override
+    public boolean convert(String outputPath, String outputPathHTML) {
+        Map<String, String> vars = Converters.variables(outputPath);
+        if (!"true".equals(vars.get("ismarkdown")) || !start()) {
+            return Converters.pandoc.convert(outputPath, outputPathHTML);
+        }
+        try {
+            String html = convertPage(NativeConverter.readLenient(new File(outputPath)), vars);
+            if (html != null) {
+                Files.write(new File(outputPathHTML).toPath(), html.getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+        }
+        Utility.log("[L] %s: no page from pandoc-server, falling back to pandoc\n", outputPath);
+        return Converters.pandoc.convert(outputPath, outputPathHTML);
+    }
+
+    @Override
+    public boolean convert(String outputPath, PageSource source, String outputPathHTML) {
+        Map<String, String> vars = Converters.variables(outputPath);
+        if (!"true".equals(vars.get("ismarkdown")) || !start()) {
+            return Converters.pandoc.convert(outputPath, source, outputPathHTML);
+        }
+        final String page;
+        try {
+            page = Utility.toText(source);
+            String html = convertPage(page, vars);
+            if (html != null) {
+                Files.write(new File(outputPathHTML).toPath(), html.getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", outputPath, e.getMessage());
+            return false;
+        }
+        Utility.log("[L] %s: no page from pandoc-server, falling back to pandoc\n", outputPath);
+        // the source is used up, hand pandoc what we read from it
+        return Converters.pandoc.convert(outputPath, Utility.replay(page), outputPathHTML);
+    }
+
+    // like the pandoc command line: document, then .md2html.yml; the -V variables go along as they are
+    private String convertPage(String page, Map<String, String> vars) throws IOException {
+        StringBuilder text = new StringBuilder(page);
+        text.append("\n\n");
+        text.append(NativeConverter.readLenient(new File(Bundle.dotmd2htmlymlPath)));
+        return convertText(text.toString(), vars);
+    }
+
+    // markdown -> html through a worker, null if no worker could do it. vars != null: a page, with
+    // the template and these variables (not metadata: that would be read as markdown)
+    public String convertText(String markdown, Map<String, String> vars) throws IOException {
+        if (!start()) {
+            return null;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"text\":").append(Json.quote(markdown));
+        json.append(",\"from\":\"markdown+abbreviations+east_asian_line_breaks+emoji\"");
+        json.append(",\"to\":\"html\",\"standalone\":true");
+        // as '--ascii --mathjax' on the command line
+        json.append(",\"ascii\":true,\"html-math-method\":\"mathjax\"");
+        if (vars != null) {
+            json.append(",\"template\":").append(Json.quote(getTemplate()));
+            json.append(",\"variables\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> var: vars.entrySet()) {
+                json.append(first ? "" : ",").append(Json.quote(var.getKey())).append(':').append(Json.quote(var.getValue()));
+                first = false;
+            }
+            json.append("}");
+        }
+        json.append("}");
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        // one retry on another worker, a failing worker is restarted in the meantime. a document
+        // the worker rejects goes to pandoc instead, another worker wouldn't take it either
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            Worker worker;
+            if (down.size() >= snapshot().size()) {
+                return null; // nobody to wait for
+            }
+            try {
+                worker = idle.poll(readTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (worker == null) {
+                return null;
+            }
+            try {
+                String html = post(worker.url, body);
+                idle.offer(worker);
+                return html;
+            } catch (RejectedException e) {
+                idle.offer(worker);
+                Utility.log("[X] pandoc-server %s: %s\n", worker.url, e.getMessage());
+                return null;
+            } catch (IOException e) {
+                // no connection, or no answer in time
+                if (Config.verboseMode) {
+                    Utility.log("[X] pandoc-server %s: %s\n", worker.url, e.getMessage());
+                }
+                restart(worker);
+            }
+        }
+        return null;
+    }
+
+    private static String post(String url, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("Accept", "text/plain");
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body);
+        }
+        int status = conn.getResponseCode();
+        if (status != 200) {
+            conn.disconnect();
+            throw new RejectedException("HTTP "+status);
+        }
+        try (InputStream is = conn.getInputStream()) {
+            return new String(readAll(is), StandardCharsets.UTF_8);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static boolean isHealthy(Worker worker) {
+        if (worker.process != null && !worker.process.isAlive()) {
+            return false;
+        }
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(worker.url+"version").openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(connectTimeout);
+            int status = conn.getResponseCode();
+            conn.disconnect();
+            return status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private synchronized boolean start() {
+        if (started) {
+            return available;
+        }
+        started = true;
+        if (Config.pandocServerUrl != null) {
+            String url = Config.pandocServerUrl.endsWith("/") ? Config.pandocServerUrl : Config.pandocServerUrl+"/";
+            if (isHealthy(new Worker(url, null))) {
+                // one connection per worker slot
+                for (int k = 0; k < Config.pandocWorkers; ++k) {
+                    workers.add(new Worker(url, null));
+                }
+            }
+        } else {
+            for (int k = 0; k < Config.pandocWorkers; ++k) {
+                Worker worker = spawn();
+                if (worker == null) { break; }
+                workers.add(worker);
+            }
+        }
+        available = !workers.isEmpty();
+        if (!available) {
+            System.out.println("[X] No pandoc-server available, using one pandoc process per document.");
+            return false;
+        }
+        idle.addAll(workers);
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pandoc-server-health");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Worker worker: snapshot()) {
+                    if (worker.process == null) {
+                        if (down.contains(worker) && isHealthy(worker)) {
+                            down.remove(worker);
+                            idle.offer(worker);
+                        }
+                    } else if (!isHealthy(worker)) {
+                        restart(worker);
+                    }
+                }
+            }
+        }, healthCheckPeriod, healthCheckPeriod, TimeUnit.MILLISECONDS);
+        // spawned workers are reaped by Subprocesses at exit
+        return true;
+    }
+
+    private synchronized ArrayList<Worker> snapshot() {
+        return new ArrayList<>(workers);
+    }
+
+    // replaces a dead (or misbehaving) worker; external servers are put back by the health check
+    private synchronized void restart(Worker worker) {
+        if (!workers.contains(worker)) {
+            return; // already replaced
+        }
+        idle.remove(worker);
+        if (worker.process == null) {
+            down.add(worker);
+            return;
+        }
+        Subprocesses.destroy(worker.process);
+        Worker fresh = spawn();
+        workers.remove(worker);
+        if (fresh != null) {
+            workers.add(fresh);
+            idle.offer(fresh);
+        }
+        if (!Config.silentMode) {
+            System.out.printf("[L] Restarted pandoc-server worker %s%s\n", worker.url,
+                    fresh == null ? " (failed)" : " -> "+fresh.url);
+        }
+    }
+
+    private static Worker spawn() {
+        String[][] commands = {
+                {"pandoc-server"},
+                {"pandoc", "server"},
+        };
+        for (String[] command: commands) {
+            try {
+                int port = freePort();
+                ArrayList<String> cmds = new ArrayList<>();
+                for (String c: command) { cmds.add(c); }
+                cmds.add("--port");
+                cmds.add(String.valueOf(port));
+                File devNull = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+                Process p = Subprocesses.start(new ProcessBuilder().command(cmds)
+                        .redirectOutput(devNull).redirectError(devNull));
+                Worker worker = new Worker("http://127.0.0.1:"+port+"/", p);
+                // wait until it listens
+                for (int k = 0; k < 50 && p.isAlive(); ++k) {
+                    if (isHealthy(worker)) { return worker; }
+                    Thread.sleep(100);
+                }
+                Subprocesses.destroy(p);
+            } catch (IOException e) {
+                // try the next spelling
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private synchronized String getTemplate() throws IOException {
+        File file = new File(Bundle.htmltemplatePath);
+        if (template == null || file.lastModified() != templateStamp) {
+            templateStamp = file.lastModified();
+            template = NativeConverter.readLenient(file);
+        }
+        return template;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int hasRead = 0;
+        while ((hasRead = is.read(buf)) > 0) {
+            bos.write(buf, 0, hasRead);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,69 @@
+package com.tangzhixiong.md2html;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// runs Utility.mappingFile for independent files on a bounded pool of workers
+public class Pipeline {
+    public static int build(Map<String, String> mapping) {
+        final AtomicInteger failures = new AtomicInteger(0);
+        if (Config.jobs <= 1) {
+            for (Map.Entry<String, String> entry: mapping.entrySet()) {
+                if (!runTask(entry.getKey(), entry.getValue())) {
+                    failures.incrementAndGet();
+                }
+            }
+            return failures.get();
+        }
+
+        // bounded queue + caller-runs, so we never hold the whole tree in the executor; a latch
+        // instead of a future per file, for the same reason
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Config.jobs, Config.jobs,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Config.jobs * 4),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        final CountDownLatch done = new CountDownLatch(mapping.size());
+        for (Map.Entry<String, String> entry: mapping.entrySet()) {
+            final String inputPath = entry.getKey();
+            final String outputPath = entry.getValue();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean succeeded = false;
+                    try {
+                        succeeded = runTask(inputPath, outputPath);
+                    } finally {
+                        if (!succeeded) {
+                            failures.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            failures.addAndGet((int) done.getCount());
+        }
+        return failures.get();
+    }
+
+    // one file, with its log lines flushed in one piece
+    public static boolean runTask(String inputPath, String outputPath) {
+        Utility.beginLogBuffer();
+        try {
+            return Utility.mappingFile(inputPath, outputPath);
+        } catch (RuntimeException e) {
+            Utility.log("[X] %s -> %s: %s\n", inputPath, outputPath, e);
+            return false;
+        } finally {
+            Utility.endLogBuffer();
+        }
+    }
+}
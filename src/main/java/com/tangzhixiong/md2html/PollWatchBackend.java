@@ -0,0 +1,206 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+// no watch keys: lists directories every now and then and compares (name, mtime, size) with the
+// last listing. works on any file system and with any number of directories.
+//
+// the interval adapts: Config.pollMillis right after a change, backing off while nothing happens,
+// and never less than ten times what a scan costs, so polling stays a small share of one core.
+public class PollWatchBackend implements WatchBackend {
+    private static final long maxIntervalMillis = 10000;
+    private static final int costFactor = 10;
+
+    // one directory listing, sorted by name: three flat arrays instead of an object per file
+    private static class Snapshot {
+        final String[] names;
+        final long[] mtimes;
+        final long[] sizes; // -1 for directories
+
+        Snapshot(String[] names, long[] mtimes, long[] sizes) {
+            this.names = names;
+            this.mtimes = mtimes;
+            this.sizes = sizes;
+        }
+    }
+
+    // what one directory's scan found
+    private static class Diff {
+        final String dir;
+        final Snapshot snapshot; // null: the directory is gone
+        final ArrayList<String> changed = new ArrayList<>();
+        final ArrayList<String> deleted = new ArrayList<>();
+
+        Diff(String dir, Snapshot snapshot) {
+            this.dir = dir;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final boolean unwatchedOnly;
+    private final ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    // unwatchedOnly: only directories without a watch key (the hybrid backend)
+    public PollWatchBackend(boolean unwatchedOnly) {
+        this.unwatchedOnly = unwatchedOnly;
+    }
+
+    @Override
+    public String getName() {
+        return "poll";
+    }
+
+    @Override
+    public void watch(TreeChanges changes) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Config.jobs), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "watch-scan");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            long interval = Config.pollMillis;
+            while (new File(Config.srcDirPath).isDirectory()) {
+                long start = System.nanoTime();
+                boolean found = scan(executor, changes);
+                long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (found) {
+                    interval = Config.pollMillis;
+                } else {
+                    interval = Math.min(maxIntervalMillis, interval * 3 / 2);
+                }
+                interval = Math.max(interval, cost * costFactor);
+                if (Config.verboseMode && found) {
+                    System.out.printf("[L] Polled in %d ms, next in %d ms\n", cost, interval);
+                }
+                Thread.sleep(interval);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // one round over all directories (in parallel), returns true if anything changed
+    private boolean scan(ExecutorService executor, TreeChanges changes) throws Exception {
+        List<String> dirs = Bundle.getDirectories(unwatchedOnly);
+        HashSet<String> known = new HashSet<>(dirs);
+        snapshots.keySet().retainAll(known);
+
+        ArrayList<Future<Diff>> futures = new ArrayList<>();
+        for (final String dir: dirs) {
+            futures.add(executor.submit(new Callable<Diff>() {
+                @Override
+                public Diff call() {
+                    return diff(dir);
+                }
+            }));
+        }
+        boolean found = false;
+        for (Future<Diff> future: futures) {
+            Diff diff = future.get();
+            if (diff.snapshot == null) {
+                // the parent's listing reports it (or did already)
+                snapshots.remove(diff.dir);
+                continue;
+            }
+            snapshots.put(diff.dir, diff.snapshot);
+            for (String path: diff.deleted) {
+                changes.deleted(path);
+                found = true;
+            }
+            for (String path: diff.changed) {
+                changes.changed(new File(path));
+                found = true;
+            }
+        }
+        changes.flush();
+        return found;
+    }
+
+    private Diff diff(String dir) {
+        Snapshot now = list(dir);
+        Diff diff = new Diff(dir, now);
+        Snapshot before = snapshots.get(dir);
+        if (now == null) {
+            return diff;
+        }
+        if (before == null) {
+            // first look: only what Bundle doesn't know yet (created right after the directory)
+            for (int j = 0; j < now.names.length; ++j) {
+                String path = dir + File.separator + now.names[j];
+                if (now.sizes[j] < 0 ? !Bundle.isKnownDirectory(path) : !Bundle.src2dst.containsKey(path)) {
+                    diff.changed.add(path);
+                }
+            }
+            return diff;
+        }
+        // both sorted by name: merge
+        int i = 0, j = 0;
+        while (i < before.names.length || j < now.names.length) {
+            int cmp = i == before.names.length ? 1
+                    : j == now.names.length ? -1
+                    : before.names[i].compareTo(now.names[j]);
+            if (cmp < 0) {
+                diff.deleted.add(dir + File.separator + before.names[i++]);
+            } else if (cmp > 0) {
+                diff.changed.add(dir + File.separator + now.names[j++]);
+            } else {
+                boolean wasDir = before.sizes[i] < 0, isDir = now.sizes[j] < 0;
+                if (wasDir != isDir) {
+                    diff.deleted.add(dir + File.separator + now.names[j]);
+                    diff.changed.add(dir + File.separator + now.names[j]);
+                } else if (!isDir && (before.mtimes[i] != now.mtimes[j] || before.sizes[i] != now.sizes[j])) {
+                    diff.changed.add(dir + File.separator + now.names[j]);
+                }
+                ++i;
+                ++j;
+            }
+        }
+        return diff;
+    }
+
+    private static Snapshot list(String dir) {
+        ArrayList<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir))) {
+            for (Path entry: stream) {
+                entries.add(entry);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        Collections.sort(entries, new Comparator<Path>() {
+            @Override
+            public int compare(Path o1, Path o2) {
+                return o1.getFileName().toString().compareTo(o2.getFileName().toString());
+            }
+        });
+        int n = entries.size();
+        String[] names = new String[n];
+        long[] mtimes = new long[n];
+        long[] sizes = new long[n];
+        int k = 0;
+        for (Path entry: entries) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                names[k] = entry.getFileName().toString();
+                mtimes[k] = attrs.lastModifiedTime().toMillis();
+                sizes[k] = attrs.isDirectory() ? -1 : attrs.size();
+                ++k;
+            } catch (IOException e) {
+                // vanished while listing, the next round reports it
+            }
+        }
+        return k == n ? new Snapshot(names, mtimes, sizes)
+                : new Snapshot(Arrays.copyOf(names, k), Arrays.copyOf(mtimes, k), Arrays.copyOf(sizes, k));
+    }
+}
@@ -0,0 +1,78 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// '-gzip [-gzip-min <BYTES>]': page.html -> page.html.gz next to it, for servers that send those
+// as they are (nginx gzip_static, caddy precompressed, ...) instead of compressing every response.
+//
+// only html, css and js of at least Config.gzipMinBytes. a sidecar has its file's mtime, so one with
+// a different mtime is stale; it is (re)written by the build worker that produced the file, in
+// parallel with everything else, and only then. sidecars of files that are gone go too.
+public class Precompressor {
+    public static final String suffix = ".gz";
+    private static final List<String> exts = Arrays.asList("html", "htm", "css", "js");
+
+    public static boolean isEnabled() {
+        return Config.gzip;
+    }
+
+    public static boolean isCompressible(String path) {
+        return exts.contains(Utility.getExt(path).toLowerCase());
+    }
+
+    // the sidecar of path, if path should have one and it is current; null otherwise. written: path
+    // was just written, a sidecar with its mtime may still be one of an edit in the same second
+    public static File sidecar(String path, boolean written) {
+        File file = new File(path);
+        File gz = new File(path+suffix);
+        if (!isEnabled() || !isCompressible(path) || !file.isFile() || file.length() < Config.gzipMinBytes) {
+            if (gz.isFile() && isCompressible(path)) {
+                gz.delete(); // too small (now), or not wanted anymore
+            }
+            return null;
+        }
+        long mtime = file.lastModified();
+        if (!written && gz.isFile() && gz.lastModified() == mtime) {
+            return gz;
+        }
+        File tmp = new File(path+suffix+".tmp");
+        try {
+            try (
+                InputStream is = new BufferedInputStream(new FileInputStream(file));
+                OutputStream os = new GZIPOutputStream(new FileOutputStream(tmp), 64*1024) {
+                    { def.setLevel(Deflater.BEST_COMPRESSION); }
+                };
+            ) {
+                byte[] buf = new byte[64*1024];
+                int hasRead;
+                while ((hasRead = is.read(buf)) > 0) {
+                    os.write(buf, 0, hasRead);
+                }
+            }
+            tmp.setLastModified(mtime);
+            // servers never see half a sidecar
+            Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return gz;
+        } catch (IOException e) {
+            tmp.delete();
+            Utility.log("[X] %s: %s\n", gz, e);
+            return null;
+        }
+    }
+
+    // a sidecar whose file is gone
+    public static boolean isOrphan(File file) {
+        String path = file.getPath();
+        if (!path.endsWith(suffix)) {
+            return false;
+        }
+        String base = path.substring(0, path.length()-suffix.length());
+        return isCompressible(base) && !new File(base).exists();
+    }
+}
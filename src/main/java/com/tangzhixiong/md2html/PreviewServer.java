@@ -0,0 +1,292 @@
+package com.tangzhixiong.md2html;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// '-serve': the publish tree over http (the jdk's own server), without building it first. a page is
+// built when it is first asked for, and from then on rebuilt whenever its sources change; pages
+// nobody looked at are left alone (the build manifest tells on the next request if they are stale).
+//
+// every html page served gets a few lines of script that listen on /_md2html/events (server-sent
+// events) and reload the page once it was rebuilt. the files on disk stay as they are.
+public class PreviewServer implements RebuildScheduler.Listener {
+    public static final String eventsPath = "/"+Bundle.resourceDirName+"/events";
+    private static final long heartbeatMillis = 15000;
+    private static final String reloadScript = "\n<script>(function(){"
+            + "var es=new EventSource('"+eventsPath+"?page='+encodeURIComponent(location.pathname));"
+            + "es.addEventListener('reload',function(){location.reload();});"
+            + "})();</script>\n";
+    private static final HashMap<String, String> contentTypes = new HashMap<>();
+    static {
+        contentTypes.put("html", "text/html; charset=utf-8");
+        contentTypes.put("css", "text/css; charset=utf-8");
+        contentTypes.put("js", "application/javascript; charset=utf-8");
+        contentTypes.put("json", "application/json; charset=utf-8");
+        contentTypes.put("txt", "text/plain; charset=utf-8");
+        contentTypes.put("yml", "text/plain; charset=utf-8");
+        contentTypes.put("svg", "image/svg+xml");
+        contentTypes.put("png", "image/png");
+        contentTypes.put("jpg", "image/jpeg");
+        contentTypes.put("jpeg", "image/jpeg");
+        contentTypes.put("gif", "image/gif");
+        contentTypes.put("ico", "image/x-icon");
+        contentTypes.put("pdf", "application/pdf");
+        for (String ext: Bundle.markupExts) {
+            contentTypes.put(ext, "text/plain; charset=utf-8");
+        }
+    }
+
+    private RebuildScheduler scheduler;
+    // sources of the pages that were asked for, kept up to date from now on -> their first build
+    // (true if it went through); a page whose first build failed is dropped, the next request retries
+    private final ConcurrentHashMap<String, FutureTask<Boolean>> rendered = new ConcurrentHashMap<>();
+    // url path of a page -> browsers looking at it
+    private final ConcurrentHashMap<String, Set<OutputStream>> viewers = new ConcurrentHashMap<>();
+
+    public void setScheduler(RebuildScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // bindAddress null: loopback only, a preview isn't meant for the network
+    public void start(String bindAddress, int port) throws IOException {
+        InetAddress address = bindAddress != null ? InetAddress.getByName(bindAddress) : InetAddress.getLoopbackAddress();
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (exchange.getRequestURI().getPath().equals(eventsPath)) {
+                        events(exchange);
+                    } else {
+                        serve(exchange);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // event streams hold on to their thread
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "serve-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+        System.out.printf("Serving %s at http://%s:%d/\n", Config.dstDirPath,
+                bindAddress != null ? bindAddress : "localhost", port);
+    }
+
+    // only what is being looked at is rebuilt on changes
+    @Override
+    public boolean wants(String inputPath) {
+        return rendered.containsKey(inputPath);
+    }
+
+    @Override
+    public void built(String inputPath, String outputPath) {
+        String page = urlPath(Utility.isMarkdownFile(outputPath) ? htmlPath(outputPath) : outputPath);
+        Set<OutputStream> streams = viewers.get(page);
+        if (streams == null) {
+            return;
+        }
+        for (OutputStream os: streams) {
+            send(streams, os, "event: reload\ndata: "+page+"\n\n");
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        if (path.endsWith("/")) {
+            path += "index.html";
+        }
+        File file = new File(Config.dstDirPath, path.substring(1).replace('/', File.separatorChar));
+        String filePath = file.getCanonicalPath();
+        if (!filePath.equals(Config.dstDirPath) && !filePath.startsWith(Config.dstDirPath+File.separator)) {
+            exchange.sendResponseHeaders(403, -1);
+            return;
+        }
+        // build it (or make sure it is current) if it comes from a source file
+        String inputPath = sourceOf(filePath);
+        if (inputPath != null) {
+            buildOnce(inputPath, path);
+        }
+        if (!file.isFile()) {
+            // no index.html: README.html will do
+            File readme = new File(file.getParentFile(), "README.html");
+            if (path.endsWith("/index.html") && (readme.isFile() || sourceOf(readme.getPath()) != null)) {
+                exchange.getResponseHeaders().set("Location", path.substring(0, path.length()-"index.html".length())+"README.html");
+                exchange.sendResponseHeaders(302, -1);
+                return;
+            }
+            byte[] body = ("404 Not Found: "+path+"\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            return;
+        }
+        String ext = Utility.getExt(filePath).toLowerCase();
+        String type = contentTypes.get(ext);
+        exchange.getResponseHeaders().set("Content-Type", type != null ? type : "application/octet-stream");
+        exchange.getResponseHeaders().set("Cache-Control", (StaticResources.isImmutable(file.getName())
+                || AssetBundler.isBundle(file.getName())) && file.getParent().equals(Bundle.resourcePath) ? "public, max-age=31536000, immutable" : "no-cache");
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        if (ext.equals("html")) {
+            byte[] body = injectReload(Files.readAllBytes(file.toPath()));
+            exchange.sendResponseHeaders(200, head ? -1 : body.length);
+            if (!head) {
+                exchange.getResponseBody().write(body);
+            }
+        } else {
+            exchange.sendResponseHeaders(200, head ? -1 : file.length());
+            if (!head) {
+                Files.copy(file.toPath(), exchange.getResponseBody());
+            }
+        }
+    }
+
+    // the first request for a page builds it, concurrent ones wait for that build
+    private void buildOnce(final String inputPath, final String path) throws InterruptedException {
+        FutureTask<Boolean> build = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                long start = System.nanoTime();
+                boolean built = scheduler.buildNow(inputPath);
+                if (Config.verboseMode) {
+                    System.out.printf("[L] %s built on request in %d ms\n", path,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                return built;
+            }
+        });
+        FutureTask<Boolean> first = rendered.putIfAbsent(inputPath, build);
+        if (first == null) {
+            first = build;
+            build.run();
+        }
+        boolean built;
+        try {
+            built = first.get();
+        } catch (ExecutionException | CancellationException e) {
+            built = false;
+        }
+        if (!built) {
+            rendered.remove(inputPath, first);
+        }
+    }
+
+    // the source a file under dstDir is built from: the same path, or a markup file next to it
+    // for an .html; null for what isn't built from sources (_md2html/..., stale files)
+    private static String sourceOf(String outputPath) {
+        if (!outputPath.startsWith(Config.dstDirPath+File.separator)) {
+            return null;
+        }
+        String relative = outputPath.substring(Config.dstDirPath.length()+1);
+        String inputPath = Config.srcDirPath+File.separator+relative;
+        if (Bundle.src2dst.containsKey(inputPath)) {
+            return inputPath;
+        }
+        if (!relative.endsWith(".html")) {
+            return null;
+        }
+        String base = inputPath.substring(0, inputPath.length()-".html".length());
+        for (String ext: Bundle.markupExts) {
+            if (Bundle.src2dst.containsKey(base+"."+ext)) {
+                return base+"."+ext;
+            }
+        }
+        // 'Rmd' & co., extensions aren't lower case everywhere
+        File[] siblings = new File(base).getParentFile().listFiles();
+        String prefix = new File(base).getName()+".";
+        for (File sibling: siblings == null ? new File[0] : siblings) {
+            String name = sibling.getName();
+            if (name.startsWith(prefix) && Bundle.markupExts.contains(Utility.getExt(name).toLowerCase())
+                    && Bundle.src2dst.containsKey(sibling.getPath())) {
+                return sibling.getPath();
+            }
+        }
+        return null;
+    }
+
+    private static byte[] injectReload(byte[] html) {
+        String page = new String(html, StandardCharsets.UTF_8);
+        int idx = page.lastIndexOf("</body>");
+        page = idx < 0 ? page + reloadScript : page.substring(0, idx) + reloadScript + page.substring(idx);
+        return page.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // text/event-stream, held open until the browser goes away
+    private void events(HttpExchange exchange) throws IOException, InterruptedException {
+        String page = null;
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && query.startsWith("page=")) {
+            page = URLDecoder.decode(query.substring("page=".length()), "UTF-8");
+            if (page.endsWith("/")) {
+                page += "index.html";
+            }
+        }
+        if (page == null) {
+            exchange.sendResponseHeaders(400, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream os = exchange.getResponseBody();
+        Set<OutputStream> streams = viewers.get(page);
+        if (streams == null) {
+            viewers.putIfAbsent(page, ConcurrentHashMap.<OutputStream>newKeySet());
+            streams = viewers.get(page);
+        }
+        streams.add(os);
+        try {
+            send(streams, os, "retry: 1000\n\n");
+            while (streams.contains(os)) {
+                Thread.sleep(heartbeatMillis);
+                send(streams, os, ": ping\n\n");
+            }
+        } finally {
+            streams.remove(os);
+        }
+    }
+
+    // drops the viewer if the connection is gone
+    private static void send(Set<OutputStream> streams, OutputStream os, String message) {
+        synchronized (os) {
+            try {
+                os.write(message.getBytes(StandardCharsets.UTF_8));
+                os.flush();
+            } catch (IOException e) {
+                streams.remove(os);
+            }
+        }
+    }
+
+    private static String htmlPath(String outputPath) {
+        return outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html";
+    }
+
+    private static String urlPath(String outputPath) {
+        return "/"+outputPath.substring(Config.dstDirPath.length()+1).replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,253 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// '-archive <FILE>': the publish tree as one .zip, .tar or .tar.gz (.tgz), for deploy steps that
+// would otherwise walk (and read) the whole tree a second time.
+//
+// the build workers hand every output over as soon as it is done (or found up to date); one thread
+// appends them to the archive while the rest is still being built. the archive is written to
+// <FILE>.part and renamed when complete. paths in it are relative to the publish tree.
+public class PublishArchive {
+    private static final File end = new File("");
+    private static PublishArchive archive = null;
+
+    private final File target;
+    private final File part;
+    private final LinkedBlockingQueue<File> queue = new LinkedBlockingQueue<>();
+    private final Set<String> added = new HashSet<>();
+    private final Thread writer;
+    private volatile IOException error = null;
+    private int entries = 0;
+
+    private PublishArchive(String path) {
+        target = new File(path).getAbsoluteFile();
+        part = new File(target.getPath()+".part");
+        writer = new Thread("archive-writer") {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (IOException e) {
+                    error = e;
+                    queue.clear();
+                } catch (InterruptedException e) {
+                    error = new InterruptedIOException();
+                }
+            }
+        };
+        writer.setDaemon(true);
+    }
+
+    public static boolean isFormat(String path) {
+        String name = path.toLowerCase();
+        return name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    public static synchronized void open(String path) {
+        archive = new PublishArchive(path);
+        Utility.mkdirHyphenPDollarAtD(archive.part);
+        archive.writer.start();
+    }
+
+    public static synchronized boolean isOpen() {
+        return archive != null;
+    }
+
+    // an output file (under dstDir) that belongs to the archive; anything else is ignored
+    public static void add(File file) {
+        PublishArchive current;
+        synchronized (PublishArchive.class) {
+            current = archive;
+        }
+        if (current != null && current.error == null && file.getPath().startsWith(Config.dstDirPath+File.separator)) {
+            current.queue.add(file);
+        }
+    }
+
+    // waits for the writer, returns false if the archive could not be written
+    public static boolean close() throws InterruptedException {
+        PublishArchive current;
+        synchronized (PublishArchive.class) {
+            current = archive;
+            archive = null;
+        }
+        if (current == null) {
+            return true;
+        }
+        current.queue.add(end);
+        current.writer.join();
+        if (current.error == null) {
+            try {
+                Files.move(current.part.toPath(), current.target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (!Config.silentMode) {
+                    System.out.printf("[L] Archived %d file(s) into %s\n", current.entries, current.target);
+                }
+                return true;
+            } catch (IOException e) {
+                current.error = e;
+            }
+        }
+        current.part.delete();
+        System.out.printf("[X] %s: %s\n", current.target, current.error);
+        return false;
+    }
+
+    private void write() throws IOException, InterruptedException {
+        String name = target.getName().toLowerCase();
+        if (name.endsWith(".zip")) {
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(part), 64*1024))) {
+                for (File file = next(); file != null; file = next()) {
+                    ZipEntry entry = new ZipEntry(entryName(file));
+                    entry.setTime(file.lastModified());
+                    // what is compressed already (.gz sidecars, images, ...) is only stored
+                    zip.setLevel(Precompressor.isCompressible(file.getPath())
+                            ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                    zip.putNextEntry(entry);
+                    Files.copy(file.toPath(), zip);
+                    zip.closeEntry();
+                }
+            }
+        } else {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(part), 64*1024);
+            if (!name.endsWith(".tar")) {
+                os = new GZIPOutputStream(os, 64*1024);
+            }
+            try (OutputStream tar = os) {
+                for (File file = next(); file != null; file = next()) {
+                    writeTarEntry(tar, file);
+                }
+                // end of archive: two empty records
+                tar.write(new byte[1024]);
+            }
+        }
+    }
+
+    // the next file not archived yet, null at the end
+    private File next() throws InterruptedException {
+        while (true) {
+            File file = queue.take();
+            if (file == end) {
+                return null;
+            }
+            if (file.isFile() && added.add(file.getPath())) {
+                ++entries;
+                return file;
+            }
+        }
+    }
+
+    private static String entryName(File file) {
+        return file.getPath().substring(Config.dstDirPath.length()+1).replace(File.separatorChar, '/');
+    }
+
+    // ustar, with a pax header for what ustar can't hold (long or non-ascii names, sizes >= 8 GiB)
+    private static void writeTarEntry(OutputStream tar, File file) throws IOException {
+        String name = entryName(file);
+        long size = file.length();
+        long mtime = file.lastModified() / 1000;
+        String[] ustarName = splitName(name);
+        StringBuilder pax = new StringBuilder();
+        if (ustarName == null) {
+            pax.append(paxRecord("path", name));
+            ustarName = new String[]{"", asciiTail(name, 100)};
+        }
+        if (size > 077777777777L) {
+            pax.append(paxRecord("size", String.valueOf(size)));
+        }
+        if (pax.length() > 0) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            tar.write(header("", asciiTail("PaxHeaders/"+ustarName[1], 100), records.length, mtime, 'x'));
+            tar.write(records);
+            pad(tar, records.length);
+        }
+        tar.write(header(ustarName[0], ustarName[1], Math.min(size, 077777777777L), mtime, '0'));
+        long copied = Files.copy(file.toPath(), tar);
+        if (copied != size) {
+            throw new IOException(file+" changed while being archived");
+        }
+        pad(tar, size);
+    }
+
+    // {prefix, name} for a ustar header, null if the name doesn't fit (or isn't ascii)
+    private static String[] splitName(String name) {
+        for (int k = 0; k < name.length(); ++k) {
+            if (name.charAt(k) >= 128) {
+                return null;
+            }
+        }
+        if (name.length() <= 100) {
+            return new String[]{"", name};
+        }
+        for (int idx = name.indexOf('/'); idx >= 0; idx = name.indexOf('/', idx+1)) {
+            if (idx <= 155 && name.length()-idx-1 <= 100) {
+                return new String[]{name.substring(0, idx), name.substring(idx+1)};
+            }
+        }
+        return null;
+    }
+
+    // "<length> key=value\n", the length counting itself
+    private static String paxRecord(String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() != String.valueOf(length).length()) {
+            ++total;
+        }
+        return total+" "+key+"="+value+"\n";
+    }
+
+    private static String asciiTail(String name, int max) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < name.length(); ++k) {
+            char c = name.charAt(k);
+            sb.append(c < 128 ? c : '_');
+        }
+        return sb.length() <= max ? sb.toString() : sb.substring(sb.length()-max);
+    }
+
+    private static byte[] header(String prefix, String name, long size, long mtime, char type) {
+        byte[] h = new byte[512];
+        put(h, 0, 100, name);
+        put(h, 100, 8, "0000644");
+        put(h, 108, 8, "0000000");
+        put(h, 116, 8, "0000000");
+        put(h, 124, 12, String.format("%011o", size));
+        put(h, 136, 12, String.format("%011o", mtime));
+        put(h, 148, 8, "        ");
+        h[156] = (byte) type;
+        put(h, 257, 6, "ustar");
+        put(h, 263, 2, "00");
+        put(h, 345, 155, prefix);
+        long checksum = 0;
+        for (byte b: h) {
+            checksum += b & 0xff;
+        }
+        put(h, 148, 8, String.format("%06o", checksum));
+        h[154] = 0;
+        h[155] = ' ';
+        return h;
+    }
+
+    private static void put(byte[] h, int offset, int length, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, h, offset, Math.min(length, bytes.length));
+    }
+
+    private static void pad(OutputStream tar, long size) throws IOException {
+        int rest = (int) (size % 512);
+        if (rest > 0) {
+            tar.write(new byte[512-rest]);
+        }
+    }
+}
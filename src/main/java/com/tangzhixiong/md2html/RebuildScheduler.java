@@ -0,0 +1,257 @@
+package com.tangzhixiong.md2html;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// watch mode: changes are collected until the tree has been quiet for a moment (an editor's save
+// burst, a 'git pull'), deduplicated, and rebuilt in parallel together with their includers.
+// a page that changes again while it is being built is cancelled and built once more afterwards.
+public class RebuildScheduler {
+    // one (scheduled or running) build of one page, or the removal of its outputs
+    private static class Build {
+        final String inputPath;
+        final boolean delete;
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile Future<?> future;
+        // set before the future is, a cancel may come in between
+        volatile boolean cancelled = false;
+        // read once finished
+        boolean succeeded = false;
+        final String outputPath;
+        Build(String inputPath, String outputPath, boolean delete) {
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+            this.delete = delete;
+        }
+        void cancel() {
+            if (delete) {
+                return;
+            }
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    // who else cares about builds (the preview server)
+    public interface Listener {
+        // changes only rebuild the pages wanted
+        boolean wants(String inputPath);
+        // a build (or the removal of a page's outputs) went through, not cancelled
+        void built(String inputPath, String outputPath);
+    }
+
+    private final LinkedHashSet<String> pending = new LinkedHashSet<>();
+    // removed sources -> their outputs, to be deleted
+    private final HashMap<String, String> deletions = new HashMap<>();
+    private long lastChange = 0;
+    // of the oldest pending change
+    private long firstChange = 0;
+    // latest build of every page, superseded ones are cancelled
+    private final HashMap<String, Build> builds = new HashMap<>();
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final ExecutorService executor;
+    private final Listener listener;
+
+    public RebuildScheduler() {
+        this(null);
+    }
+
+    public RebuildScheduler(Listener listener) {
+        this.listener = listener;
+        executor = Executors.newFixedThreadPool(Math.max(1, Config.jobs), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "rebuild-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread dispatcher = new Thread("rebuild-dispatcher") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        dispatch(nextBatch());
+                    }
+                } catch (InterruptedException e) {
+                    // shutting down
+                }
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // called for every watch event, returns at once
+    public synchronized void changed(String inputPath) {
+        // a same-size edit within the mtime's resolution would look unchanged otherwise
+        BuildManifest.invalidate(inputPath);
+        lastChange = System.currentTimeMillis();
+        if (pending.isEmpty()) {
+            firstChange = lastChange;
+        }
+        pending.add(inputPath);
+        // whatever is being built from this file right now is already stale
+        Build own = builds.get(inputPath);
+        if (own != null) {
+            own.cancel();
+        }
+        for (String target: targets(inputPath)) {
+            Build build = builds.get(target);
+            if (build != null) {
+                build.cancel();
+            }
+        }
+        notifyAll();
+    }
+
+    // the source is gone (already dropped from Bundle.src2dst): its outputs go, its includers are rebuilt
+    public synchronized void deleted(String inputPath, String outputPath) {
+        deletions.put(inputPath, outputPath);
+        changed(inputPath);
+    }
+
+    // waits for changes, then for Config.watchQuietMillis without any, but no longer than the max
+    // delay after the first of them: a file that never stops changing mustn't hold everything up
+    private synchronized ArrayList<String> nextBatch() throws InterruptedException {
+        while (pending.isEmpty()) {
+            wait();
+        }
+        long quiet;
+        long maxDelay = Config.watchMaxDelayMillis >= 0 ? Config.watchMaxDelayMillis : 10*Config.watchQuietMillis;
+        while ((quiet = Math.min(lastChange + Config.watchQuietMillis,
+                firstChange + maxDelay) - System.currentTimeMillis()) > 0) {
+            wait(quiet);
+        }
+        ArrayList<String> batch = new ArrayList<>(pending);
+        pending.clear();
+        return batch;
+    }
+
+    private void dispatch(List<String> batch) {
+        LinkedHashSet<String> targets = new LinkedHashSet<>();
+        for (String inputPath: batch) {
+            String outputPath;
+            synchronized (this) {
+                outputPath = deletions.remove(inputPath);
+            }
+            if (outputPath != null && !Bundle.src2dst.containsKey(inputPath)) {
+                schedule(inputPath, outputPath, true);
+            }
+            targets.addAll(targets(inputPath));
+        }
+        for (String target: targets) {
+            if (listener == null || listener.wants(target)) {
+                schedule(target, Bundle.src2dst.get(target), false);
+            }
+        }
+    }
+
+    // builds a page right away (if it isn't up to date) and waits for it; a build of it that is
+    // already under way is waited for instead. false if the page couldn't be built
+    public boolean buildNow(String inputPath) throws InterruptedException {
+        String outputPath = Bundle.src2dst.get(inputPath);
+        if (outputPath == null) {
+            return false;
+        }
+        while (true) {
+            Build build;
+            synchronized (this) {
+                build = builds.get(inputPath);
+                if (build == null || build.delete || build.cancelled) {
+                    build = schedule(inputPath, outputPath, false);
+                }
+            }
+            build.finished.await();
+            // superseded by a change: the next one is what counts
+            if (build.succeeded || !build.cancelled) {
+                return build.succeeded;
+            }
+        }
+    }
+
+    // the file itself, and every page that includes it
+    private static List<String> targets(String inputPath) {
+        ArrayList<String> targets = new ArrayList<>();
+        if (Bundle.src2dst.containsKey(inputPath)) {
+            targets.add(inputPath);
+        }
+        for (String includer: IncludeGraph.getIncluders(inputPath)) {
+            if (Bundle.src2dst.containsKey(includer)) {
+                targets.add(includer);
+            }
+        }
+        return targets;
+    }
+
+    private synchronized Build schedule(final String inputPath, final String outputPath, final boolean delete) {
+        final Build previous = builds.get(inputPath);
+        if (previous != null) {
+            previous.cancel();
+        }
+        final Build build = new Build(inputPath, outputPath, delete);
+        builds.put(inputPath, build);
+        active.incrementAndGet();
+        build.future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // never two builds of one page at a time, they would write the same files
+                    if (previous != null) {
+                        previous.finished.await();
+                    }
+                    if (build.delete) {
+                        Utility.beginLogBuffer();
+                        try {
+                            Utility.deleteOutputs(inputPath, outputPath);
+                        } finally {
+                            Utility.endLogBuffer();
+                        }
+                        build.succeeded = true;
+                    } else if (isCurrent(build)) {
+                        build.succeeded = Pipeline.runTask(inputPath, outputPath);
+                    }
+                } catch (InterruptedException e) {
+                    // superseded while waiting
+                } finally {
+                    finish(build);
+                }
+            }
+        });
+        if (build.cancelled) {
+            build.future.cancel(true);
+        }
+        return build;
+    }
+
+    private synchronized boolean isCurrent(Build build) {
+        return builds.get(build.inputPath) == build && !build.cancelled;
+    }
+
+    private void finish(Build build) {
+        boolean completed;
+        synchronized (this) {
+            completed = builds.get(build.inputPath) == build && !build.cancelled;
+            if (completed) {
+                builds.remove(build.inputPath);
+            } else {
+                // cancelled half-way: the output (and what the manifest says about it) can't be trusted
+                BuildManifest.forget(build.inputPath);
+            }
+        }
+        build.finished.countDown();
+        if (completed && listener != null) {
+            listener.built(build.inputPath, build.outputPath);
+        }
+        if (active.decrementAndGet() == 0) {
+            BuildManifest.save();
+            BuildStats.write();
+            RenderCache.evict();
+        }
+    }
+}
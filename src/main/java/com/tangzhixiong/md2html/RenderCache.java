@@ -0,0 +1,251 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// '-cache <DIR>': rendered pages, shared by every build (branches, checkouts, CI workspaces) that
+// points at the same directory. content-addressed:
+//
+//      <DIR>/objects/3f/9a1c...html    key: the expanded page, the template, the merged config,
+//                                      the converter (its version too) and its options and variables
+//      <DIR>/used/3f/9a1c...           empty, its mtime is when the object was last used
+//
+// a hit is hard-linked (copied, across file systems) into the publish tree instead of converting.
+// objects are written to <DIR>/tmp and renamed into place, so readers never see half a page. nothing
+// writes through a link into the cache: a page's html is deleted before it is converted again, and
+// everything else is replaced by a rename. the object itself is never touched (its mtime is the
+// publish trees' mtime too); objects least recently used go when the cache is over
+// Config.renderCacheBytes.
+public class RenderCache {
+    private static final String objectsDirName = "objects";
+    private static final String tmpDirName = "tmp";
+    private static final String usedDirName = "used";
+    private static final String lockName = "lock";
+
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+    private static final AtomicLong stores = new AtomicLong(0);
+    // temp names unique across builds sharing the cache
+    private static final String nonce = UUID.randomUUID().toString();
+    private static final AtomicLong tmpCount = new AtomicLong(0);
+    private static String pandocVersion = null;
+
+    public static boolean isEnabled() {
+        return Config.renderCacheDir != null;
+    }
+
+    // null if the page can't be keyed (and so isn't cached). a source is written out here, so it must
+    // be one that can be replayed (Utility.replay)
+    public static String key(String outputPath, Converter converter, PageSource source) {
+        final MessageDigest md = BuildManifest.newDigest();
+        try {
+            BuildManifest.update(md, "page");
+            if (source == null) {
+                try (InputStream is = new BufferedInputStream(new FileInputStream(outputPath))) {
+                    byte[] buf = new byte[64*1024];
+                    int hasRead;
+                    while ((hasRead = is.read(buf)) > 0) {
+                        md.update(buf, 0, hasRead);
+                    }
+                }
+            } else {
+                source.writeTo(new LineSink() {
+                    @Override
+                    public void line(String line) {
+                        md.update(line.getBytes(StandardCharsets.UTF_8));
+                        md.update((byte) '\n');
+                    }
+                });
+                BuildManifest.update(md, "piped");
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        BuildManifest.update(md, "template");
+        BuildManifest.update(md, BuildManifest.hashFile(Bundle.htmltemplatePath));
+        BuildManifest.update(md, "config");
+        BuildManifest.update(md, BuildManifest.hashFile(Bundle.dotmd2htmlymlPath));
+        BuildManifest.update(md, "converter");
+        BuildManifest.update(md, converter.getName());
+        BuildManifest.update(md, converterVersion(converter));
+        BuildManifest.update(md, BuildManifest.converterOptions());
+        for (Map.Entry<String, String> var: Converters.variables(outputPath).entrySet()) {
+            BuildManifest.update(md, var.getKey());
+            BuildManifest.update(md, var.getValue());
+        }
+        return BuildManifest.hex(md.digest());
+    }
+
+    // links (or copies) the cached page to outputPathHTML, false on a miss
+    public static boolean fetch(String key, String outputPathHTML) {
+        File object = getObject(key);
+        Path target = new File(outputPathHTML).toPath();
+        try {
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, object.toPath());
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(object.toPath(), target);
+            }
+        } catch (IOException e) {
+            // not there (or evicted right now)
+            misses.incrementAndGet();
+            return false;
+        }
+        if (!object.canWrite()) {
+            // read-only objects of earlier versions: a linked page couldn't be deleted on windows
+            object.setWritable(true);
+        }
+        touch(key);
+        hits.incrementAndGet();
+        return true;
+    }
+
+    // puts a freshly converted page into the cache (by linking it, if possible)
+    public static void store(String key, String outputPathHTML) {
+        File object = getObject(key);
+        File tmp = new File(Config.renderCacheDir+File.separator+tmpDirName+File.separator
+                +key+"."+nonce+"."+tmpCount.incrementAndGet());
+        try {
+            Utility.mkdirHyphenPDollarAtD(tmp);
+            Utility.mkdirHyphenPDollarAtD(object);
+            try {
+                Files.createLink(tmp.toPath(), new File(outputPathHTML).toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(new File(outputPathHTML).toPath(), tmp.toPath());
+            }
+            Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            touch(key);
+            stores.incrementAndGet();
+        } catch (IOException e) {
+            tmp.delete();
+            Utility.log("[X] %s: can't cache: %s\n", outputPathHTML, e);
+        }
+    }
+
+    // drops least recently used objects until the cache fits; one build at a time does this
+    public static synchronized void evict() {
+        if (!isEnabled() || stores.get() == 0) {
+            return;
+        }
+        File lockFile = new File(Config.renderCacheDir+File.separator+lockName);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return; // somebody else is at it
+            }
+            try {
+                ArrayList<File> objects = new ArrayList<>();
+                long total = 0;
+                File[] shards = new File(Config.renderCacheDir+File.separator+objectsDirName).listFiles();
+                for (File shard: shards == null ? new File[0] : shards) {
+                    File[] files = shard.listFiles();
+                    for (File file: files == null ? new File[0] : files) {
+                        objects.add(file);
+                        total += file.length();
+                    }
+                }
+                if (total <= Config.renderCacheBytes) {
+                    return;
+                }
+                final HashMap<File, Long> used = new HashMap<>();
+                for (File object: objects) {
+                    // 0 (never used, as far as we know) if the stamp is missing
+                    used.put(object, getStamp(object).lastModified());
+                }
+                Collections.sort(objects, new Comparator<File>() {
+                    @Override
+                    public int compare(File o1, File o2) {
+                        return Long.compare(used.get(o1), used.get(o2));
+                    }
+                });
+                int evicted = 0;
+                for (File object: objects) {
+                    if (total <= Config.renderCacheBytes) {
+                        break;
+                    }
+                    long size = object.length();
+                    if (object.delete()) {
+                        getStamp(object).delete();
+                        total -= size;
+                        ++evicted;
+                    }
+                }
+                if (Config.verboseMode) {
+                    System.out.printf("[L] Render cache: evicted %d page(s)\n", evicted);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", lockFile, e);
+        }
+    }
+
+    public static String getStats() {
+        return String.format("%d hits, %d misses, %d stored", hits.get(), misses.get(), stores.get());
+    }
+
+    private static File getObject(String key) {
+        return new File(Config.renderCacheDir+File.separator+objectsDirName+File.separator
+                +key.substring(0, 2)+File.separator+key.substring(2)+".html");
+    }
+
+    // the object's stamp, by key or by object file
+    private static File getStamp(String key) {
+        return new File(Config.renderCacheDir+File.separator+usedDirName+File.separator
+                +key.substring(0, 2)+File.separator+key.substring(2));
+    }
+
+    private static File getStamp(File object) {
+        String name = object.getName();
+        return getStamp(object.getParentFile().getName()+name.substring(0, name.length()-".html".length()));
+    }
+
+    private static void touch(String key) {
+        File stamp = getStamp(key);
+        try {
+            Utility.mkdirHyphenPDollarAtD(stamp);
+            if (!stamp.createNewFile()) {
+                stamp.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            // then it looks unused, and goes first
+        }
+    }
+
+    // pandoc's version line (all pandoc-based converters); md2html's own code for the native one
+    private static synchronized String converterVersion(Converter converter) {
+        if (converter == Converters.nativeMarkdown) {
+            try {
+                File code = new File(RenderCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                return code.isFile() ? BuildManifest.hashFile(code.getPath()) : "dev";
+            } catch (Exception e) {
+                return "dev";
+            }
+        }
+        if (pandocVersion == null) {
+            pandocVersion = "unknown";
+            try {
+                Subprocesses.Result result = Subprocesses.run(Arrays.asList("pandoc", "-v"), null, null);
+                if (result.succeeded()) {
+                    pandocVersion = result.messages.split("\n", 2)[0];
+                }
+            } catch (IOException e) {
+                // no pandoc: no pandoc pages either
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return pandocVersion;
+    }
+}
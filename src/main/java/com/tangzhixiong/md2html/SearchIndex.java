@@ -0,0 +1,436 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// '-search': a full-text index of the pages, built with them, for main.js (search()):
+//
+//      _md2html/search/meta.json               {"docs":20000,"block":1024}
+//      _md2html/search/docs/0.json             [["a/b.html","Title"],null,...]   (ids 0..1023)
+//      _md2html/search/terms/ab.json           {"abc":[3,1,17,2],...}            (id, tf, id, tf, ...)
+//      _md2html/search/terms/u7f16.json        {"编译":[...],"编辑":[...]}
+//
+// terms are lower-cased words of letters and digits (two characters or more). chinese (and japanese,
+// korean) text has no spaces between words, so runs of it become overlapping bigrams ('编译器' ->
+// '编译', '译器'), as the east_asian_line_breaks pages are read: no dictionary needed, and a query is
+// cut the same way. the last character of a run is a term of its own too ('器'): a one-character
+// query matches the terms it begins, and no bigram begins with that one. a shard holds the terms that
+// begin with the same two ascii characters, or the same other character, so a query downloads one
+// small shard per term.
+//
+// incremental: _md2html/search-manifest.txt keeps every page's id, mtime, title and terms. only pages
+// whose html changed are read again, and only shards with their old or new terms are rewritten.
+public class SearchIndex {
+    public static final String searchDirName = "search";
+    public static final String manifestRes = "search-manifest.txt";
+    private static final String header = "# md2html search manifest v2";
+    private static final int block = 1024;
+    private static final int maxTermLength = 32;
+    private static final String bodyBegin = "<!-- body (Modify with CAUSION) -->";
+    private static final String bodyEnd = "<!-- body-after -->";
+    private static final Pattern titlePattern = Pattern.compile("(?is)<title>(.*?)</title>");
+    private static final Pattern headingPattern = Pattern.compile("(?is)<h1\\b[^>]*>(.*?)</h1>");
+    private static final Pattern skipPattern = Pattern.compile("(?is)<(script|style)\\b.*?</\\1\\s*>|<!--.*?-->");
+    private static final Pattern tagPattern = Pattern.compile("(?s)<[^>]*>");
+    private static final Pattern entityPattern = Pattern.compile("&(#[xX][0-9a-fA-F]+|#[0-9]+|[a-zA-Z]+);");
+
+    private static class Doc {
+        final int id; // -1 until it has one
+        final String path; // the page, relative to dstDir
+        final long mtime;
+        final String title;
+        final Map<String, Integer> freqs; // null for pages not read this build
+        final String terms; // space separated, from the manifest
+
+        Doc(int id, String path, long mtime, String title, Map<String, Integer> freqs, String terms) {
+            this.id = id;
+            this.path = path;
+            this.mtime = mtime;
+            this.title = title;
+            this.freqs = freqs;
+            this.terms = terms;
+        }
+
+        Collection<String> terms() {
+            return freqs != null ? freqs.keySet()
+                    : terms.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(terms.split(" "));
+        }
+    }
+
+    private static volatile boolean open = false;
+    private static final HashMap<String, Doc> previous = new HashMap<>();
+    private static final ConcurrentHashMap<String, Doc> changed = new ConcurrentHashMap<>();
+
+    public static String getSearchPath() {
+        return Bundle.resourcePath+File.separator+searchDirName;
+    }
+
+    public static String getManifestPath() {
+        return Bundle.resourcePath+File.separator+manifestRes;
+    }
+
+    // loads the pages indexed last time
+    public static void begin() {
+        previous.clear();
+        changed.clear();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(getManifestPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            lines = Collections.emptyList();
+        }
+        // no index to update (deleted, or never written): every page is read again
+        boolean indexed = new File(getSearchPath()+File.separator+"meta.json").isFile();
+        if (indexed && !lines.isEmpty() && lines.get(0).equals(header)) {
+            for (String line: lines.subList(1, lines.size())) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 5) { continue; }
+                try {
+                    previous.put(parts[2], new Doc(Integer.parseInt(parts[0]), parts[2],
+                            Long.parseLong(parts[1]), parts[3], null, parts[4]));
+                } catch (NumberFormatException e) {
+                    // that page is read again
+                }
+            }
+        } else {
+            // an index cut another way (or none): its shards go, every page is read again
+            File[] shards = new File(getSearchPath()+File.separator+"terms").listFiles();
+            for (File shard: shards == null ? new File[0] : shards) {
+                shard.delete();
+            }
+        }
+        open = true;
+    }
+
+    // a page that is up to date now, read (on the worker's thread) if it changed or was just written
+    public static void record(File html, boolean written) {
+        if (!open || !html.getPath().startsWith(Config.dstDirPath+File.separator)) {
+            return;
+        }
+        String path = relative(html.getPath());
+        long mtime = html.lastModified();
+        Doc before = previous.get(path); // only read while the build runs
+        if (!written && before != null && before.mtime == mtime) {
+            return;
+        }
+        String page;
+        try {
+            page = new String(Files.readAllBytes(html.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Utility.log("[X] %s: %s\n", html, e);
+            return;
+        }
+        // <title>, or the first heading for pages without one, or the path
+        String title = "";
+        for (Pattern pattern: new Pattern[]{titlePattern, headingPattern}) {
+            Matcher m = pattern.matcher(page);
+            if (title.isEmpty() && m.find()) {
+                title = decode(tagPattern.matcher(m.group(1)).replaceAll("")).replaceAll("\\s+", " ").trim();
+            }
+        }
+        if (title.isEmpty()) {
+            title = path;
+        }
+        changed.put(path, new Doc(-1, path, mtime, title, terms(text(page)), null));
+    }
+
+    // rewrites the shards and doc blocks that changed, and the manifest
+    public static void finish() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        // pages whose sources are gone
+        HashSet<String> pages = new HashSet<>();
+        for (Map.Entry<String, String> entry: Bundle.src2dst.entrySet()) {
+            if (Utility.isMarkdownFile(entry.getKey())) {
+                String outputPath = entry.getValue();
+                pages.add(relative(outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html"));
+            }
+        }
+        ArrayList<Doc> removed = new ArrayList<>();
+        for (Doc doc: previous.values()) {
+            if (!changed.containsKey(doc.path) && (!pages.contains(doc.path) || !new File(absolute(doc.path)).isFile())) {
+                removed.add(doc);
+            }
+        }
+
+        // ids: changed pages keep theirs, new ones get those of removed pages first
+        TreeMap<Integer, Doc> docs = new TreeMap<>();
+        for (Doc doc: previous.values()) {
+            docs.put(doc.id, doc);
+        }
+        for (Doc doc: removed) {
+            docs.remove(doc.id);
+        }
+        int next = 0;
+        ArrayList<String> paths = new ArrayList<>(changed.keySet());
+        Collections.sort(paths);
+        for (String path: paths) {
+            Doc doc = changed.get(path);
+            Doc before = previous.get(path);
+            int id = before != null ? before.id : -1;
+            if (id < 0) {
+                while (docs.containsKey(next)) { ++next; }
+                id = next;
+            }
+            docs.put(id, new Doc(id, doc.path, doc.mtime, doc.title, doc.freqs, null));
+        }
+
+        // shard -> ids to drop from it, and its new postings
+        HashMap<String, Set<Integer>> drops = new HashMap<>();
+        HashMap<String, Map<String, List<int[]>>> adds = new HashMap<>();
+        ArrayList<Doc> stale = new ArrayList<>(removed);
+        for (String path: paths) {
+            if (previous.containsKey(path)) {
+                stale.add(previous.get(path));
+            }
+        }
+        for (Doc doc: stale) {
+            for (String term: doc.terms()) {
+                String key = shardKey(term);
+                if (!drops.containsKey(key)) { drops.put(key, new HashSet<Integer>()); }
+                drops.get(key).add(doc.id);
+            }
+        }
+        for (Doc doc: docs.values()) {
+            if (doc.freqs == null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> freq: doc.freqs.entrySet()) {
+                String key = shardKey(freq.getKey());
+                if (!adds.containsKey(key)) { adds.put(key, new HashMap<String, List<int[]>>()); }
+                Map<String, List<int[]>> postings = adds.get(key);
+                if (!postings.containsKey(freq.getKey())) { postings.put(freq.getKey(), new ArrayList<int[]>()); }
+                postings.get(freq.getKey()).add(new int[]{doc.id, freq.getValue()});
+            }
+        }
+        TreeSet<String> keys = new TreeSet<>(drops.keySet());
+        keys.addAll(adds.keySet());
+        int written = 0;
+        for (String key: keys) {
+            Set<Integer> drop = drops.containsKey(key) ? drops.get(key) : Collections.<Integer>emptySet();
+            Map<String, List<int[]>> add = adds.containsKey(key) ? adds.get(key) : Collections.<String, List<int[]>>emptyMap();
+            if (writeShard(key, drop, add)) {
+                ++written;
+            }
+        }
+
+        // doc blocks, meta, manifest
+        int blocks = docs.isEmpty() ? 0 : docs.lastKey()/block + 1;
+        for (int b = 0; b < blocks; ++b) {
+            StringBuilder json = new StringBuilder("[");
+            for (int id = b*block; id < (b+1)*block && id <= docs.lastKey(); ++id) {
+                Doc doc = docs.get(id);
+                json.append(id > b*block ? ",\n" : "");
+                json.append(doc == null ? "null" : "["+Json.quote(doc.path)+","+Json.quote(doc.title)+"]");
+            }
+            json.append("]\n");
+            Utility.writeIfChanged(blockFile(b), json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (int b = blocks; blockFile(b).isFile(); ++b) {
+            blockFile(b).delete();
+        }
+        String meta = "{\"docs\":"+docs.size()+",\"block\":"+block+"}\n";
+        Utility.writeIfChanged(new File(getSearchPath()+File.separator+"meta.json"), meta.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder manifest = new StringBuilder(header).append('\n');
+        for (Doc doc: docs.values()) {
+            StringBuilder terms = new StringBuilder();
+            for (String term: doc.terms()) {
+                terms.append(terms.length() > 0 ? " " : "").append(term);
+            }
+            manifest.append(doc.id).append('\t').append(doc.mtime).append('\t').append(doc.path)
+                    .append('\t').append(doc.title.replace('\t', ' ')).append('\t').append(terms).append('\n');
+        }
+        Utility.writeIfChanged(new File(getManifestPath()), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        if (!Config.silentMode) {
+            System.out.printf("[L] Search index: %d page(s) indexed, %d removed, %d shard(s) written\n",
+                    changed.size(), removed.size(), written);
+        }
+        changed.clear();
+    }
+
+    // one shard, with drop's ids out and add's postings in; returns true if it was written
+    private static boolean writeShard(String key, Set<Integer> drop, Map<String, List<int[]>> add) {
+        File file = new File(getSearchPath()+File.separator+"terms"+File.separator+key+".json");
+        TreeMap<String, List<int[]>> terms = new TreeMap<>();
+        if (file.isFile()) {
+            try {
+                // our own format: one term per line, '{"term":[id,tf,id,tf,...],' (terms need no escapes)
+                for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    int idx = line.indexOf("\":[");
+                    int end = line.lastIndexOf(']');
+                    if (idx < 0 || end < idx) { continue; }
+                    String term = line.substring(line.indexOf('"')+1, idx);
+                    ArrayList<int[]> postings = new ArrayList<>();
+                    String[] numbers = line.substring(idx+3, end).split(",");
+                    for (int k = 0; k+1 < numbers.length; k += 2) {
+                        int id = Integer.parseInt(numbers[k]);
+                        if (!drop.contains(id)) {
+                            postings.add(new int[]{id, Integer.parseInt(numbers[k+1])});
+                        }
+                    }
+                    terms.put(term, postings);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // a broken shard: its terms are lost until those pages change
+                Utility.log("[X] %s: %s\n", file, e);
+            }
+        }
+        for (Map.Entry<String, List<int[]>> entry: add.entrySet()) {
+            if (!terms.containsKey(entry.getKey())) { terms.put(entry.getKey(), new ArrayList<int[]>()); }
+            terms.get(entry.getKey()).addAll(entry.getValue());
+        }
+        StringBuilder json = new StringBuilder();
+        for (Map.Entry<String, List<int[]>> entry: terms.entrySet()) {
+            List<int[]> postings = entry.getValue();
+            if (postings.isEmpty()) {
+                continue;
+            }
+            Collections.sort(postings, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] o1, int[] o2) {
+                    return Integer.compare(o1[0], o2[0]);
+                }
+            });
+            json.append(json.length() == 0 ? "{" : ",\n").append(Json.quote(entry.getKey())).append(":[");
+            for (int k = 0; k < postings.size(); ++k) {
+                json.append(k > 0 ? "," : "").append(postings.get(k)[0]).append(',').append(postings.get(k)[1]);
+            }
+            json.append(']');
+        }
+        if (json.length() == 0) {
+            return file.delete();
+        }
+        json.append("}\n");
+        return Utility.writeIfChanged(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static File blockFile(int b) {
+        return new File(getSearchPath()+File.separator+"docs"+File.separator+b+".json");
+    }
+
+    // the page's own text: its body, without scripts, styles, comments and tags
+    static String text(String page) {
+        int begin = page.indexOf(bodyBegin);
+        int end = page.indexOf(bodyEnd, Math.max(0, begin));
+        if (begin >= 0 && end >= 0) {
+            page = page.substring(begin+bodyBegin.length(), end);
+        } else {
+            int idx = page.toLowerCase(Locale.ROOT).indexOf("<body");
+            page = idx < 0 ? page : page.substring(idx);
+        }
+        page = skipPattern.matcher(page).replaceAll(" ");
+        return decode(tagPattern.matcher(page).replaceAll(" "));
+    }
+
+    private static String decode(String html) {
+        Matcher m = entityPattern.matcher(html);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String entity = m.group(1);
+            String replacement;
+            try {
+                if (entity.startsWith("#x") || entity.startsWith("#X")) {
+                    replacement = new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+                } else if (entity.startsWith("#")) {
+                    replacement = new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+                } else {
+                    switch (entity) {
+                        case "amp": replacement = "&"; break;
+                        case "lt": replacement = "<"; break;
+                        case "gt": replacement = ">"; break;
+                        case "quot": replacement = "\""; break;
+                        case "apos": replacement = "'"; break;
+                        default: replacement = " "; break; // &nbsp; & co.
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                replacement = " ";
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    // term -> how often it occurs; main.js cuts queries the same way (searchTerms)
+    static LinkedHashMap<String, Integer> terms(String text) {
+        LinkedHashMap<String, Integer> freqs = new LinkedHashMap<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        StringBuilder cjk = new StringBuilder();
+        for (int k = 0; k <= lower.length(); ++k) {
+            char c = k < lower.length() ? lower.charAt(k) : ' ';
+            if (isWordChar(c)) {
+                flushCjk(cjk, freqs);
+                word.append(c);
+            } else if (isCjk(c)) {
+                flushWord(word, freqs);
+                cjk.append(c);
+            } else {
+                flushWord(word, freqs);
+                flushCjk(cjk, freqs);
+            }
+        }
+        return freqs;
+    }
+
+    private static void flushWord(StringBuilder word, Map<String, Integer> freqs) {
+        if (word.length() >= 2 && word.length() <= maxTermLength) {
+            count(freqs, word.toString());
+        }
+        word.setLength(0);
+    }
+
+    private static void flushCjk(StringBuilder cjk, Map<String, Integer> freqs) {
+        if (cjk.length() > 0) {
+            count(freqs, cjk.substring(cjk.length()-1));
+        }
+        for (int k = 0; k+1 < cjk.length(); ++k) {
+            count(freqs, cjk.substring(k, k+2));
+        }
+        cjk.setLength(0);
+    }
+
+    private static void count(Map<String, Integer> freqs, String term) {
+        Integer n = freqs.get(term);
+        freqs.put(term, n == null ? 1 : n+1);
+    }
+
+    // han, kana, hangul (the basic planes of them)
+    static boolean isCjk(char c) {
+        return c >= 0x3040 && c <= 0x30ff || c >= 0x3400 && c <= 0x4dbf || c >= 0x4e00 && c <= 0x9fff
+                || c >= 0xac00 && c <= 0xd7af || c >= 0xf900 && c <= 0xfaff;
+    }
+
+    // ascii letters and digits, and letters that have a case (as main.js can tell)
+    static boolean isWordChar(char c) {
+        if (c < 128) {
+            return c >= 'a' && c <= 'z' || c >= '0' && c <= '9';
+        }
+        String s = String.valueOf(c);
+        return !isCjk(c) && !s.toLowerCase(Locale.ROOT).equals(s.toUpperCase(Locale.ROOT));
+    }
+
+    static String shardKey(String term) {
+        char c = term.charAt(0);
+        return c < 128 ? term.substring(0, Math.min(2, term.length())) : "u"+Integer.toHexString(c);
+    }
+
+    private static String relative(String path) {
+        return path.substring(Config.dstDirPath.length()+1).replace(File.separatorChar, '/');
+    }
+
+    private static String absolute(String path) {
+        return Config.dstDirPath+File.separator+path.replace('/', File.separatorChar);
+    }
+}
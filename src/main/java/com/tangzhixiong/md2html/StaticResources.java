@@ -0,0 +1,163 @@
+package com.tangzhixiong.md2html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// the resources bundled in the jar, extracted to _md2html only when their bytes changed (unless -res
+// has its own). stylesheets and scripts, ours and those at the top of -res, also get a content-hashed
+// name (main.css -> main.3f9a1c2b.css), and the mh-css/mh-js lists of the merged config point to
+// those, so they can be cached forever:
+//
+//      _md2html/resource-manifest.json     {"files":{"main.css":"main.3f9a1c2b.css",...},
+//                                           "immutable":["main.3f9a1c2b.css",...]}
+//
+// the plain names are still there, for templates that use them directly.
+public class StaticResources {
+    public static final String manifestRes = "resource-manifest.json";
+    private static final int hashLength = 8;
+    private static final Pattern hashed = Pattern.compile("^(.+)\\.([0-9a-f]{"+hashLength+"})\\.(css|js)$");
+
+    // plain name -> hashed name
+    private static final LinkedHashMap<String, String> names = new LinkedHashMap<>();
+
+    public static byte[] read(String name) throws IOException {
+        try (InputStream is = Main.class.getResourceAsStream("/"+name)) {
+            if (is == null) {
+                throw new IOException("missing resource: "+name);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int hasRead;
+            while ((hasRead = is.read(buf)) > 0) {
+                bytes.write(buf, 0, hasRead);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    // everything but the config, which Main merges (and writes) itself, and what the -res directory
+    // has too (copied over them right after); returns #files written
+    public static synchronized int extract() {
+        int written = 0;
+        for (String name: Bundle.resources) {
+            if (name.equals(Bundle.md2htmlymlRes) || isOverridden(name)) {
+                continue;
+            }
+            byte[] bytes;
+            try {
+                bytes = read(name);
+            } catch (IOException e) {
+                Utility.log("[X] %s\n", e.getMessage());
+                continue;
+            }
+            if (Utility.writeIfChanged(new File(Bundle.resourcePath+File.separator+name), bytes)) {
+                ++written;
+            }
+        }
+        return written;
+    }
+
+    // once -res is in _md2html: the hashed copies of the stylesheets and scripts there, ours and the
+    // top-level ones of -res, from the bytes that are actually served; returns #files written
+    public static synchronized int hashAll() {
+        int written = 0;
+        names.clear();
+        LinkedHashSet<String> candidates = new LinkedHashSet<>(Arrays.asList(Bundle.resources));
+        File[] overrides = Config.resDirPath == null ? null : new File(Config.resDirPath).listFiles();
+        for (File entry: overrides == null ? new File[0] : overrides) {
+            if (entry.isFile() && !hashed.matcher(entry.getName()).matches()) {
+                candidates.add(entry.getName());
+            }
+        }
+        for (String name: candidates) {
+            String ext = Utility.getExt(name);
+            if (!ext.equals("css") && !ext.equals("js")) {
+                continue;
+            }
+            byte[] bytes;
+            try {
+                bytes = Files.readAllBytes(new File(Bundle.resourcePath+File.separator+name).toPath());
+            } catch (IOException e) {
+                Utility.log("[X] %s: %s\n", name, e.getMessage());
+                continue;
+            }
+            String hash = BuildManifest.hashBytes(bytes).substring(0, hashLength);
+            String hashedName = name.substring(0, name.length()-ext.length()-1)+"."+hash+"."+ext;
+            names.put(name, hashedName);
+            if (Utility.writeIfChanged(new File(Bundle.resourcePath+File.separator+hashedName), bytes)) {
+                ++written;
+            }
+        }
+        prune();
+        Utility.writeIfChanged(new File(Bundle.resourcePath+File.separator+manifestRes), manifest());
+        return written;
+    }
+
+    private static boolean isOverridden(String name) {
+        return Config.resDirPath != null && new File(Config.resDirPath, name).isFile();
+    }
+
+    // the name pages should use
+    public static synchronized String rename(String name) {
+        String hashedName = names.get(name);
+        return hashedName != null ? hashedName : name;
+    }
+
+    // config lines: list items naming a resource get the hashed name
+    public static List<String> renameAll(List<String> lines) {
+        ArrayList<String> renamed = new ArrayList<>(lines.size());
+        for (String line: lines) {
+            String item = line.trim();
+            if (item.startsWith("- ")) {
+                String name = item.substring(2).trim();
+                String hashedName = rename(name);
+                if (!hashedName.equals(name)) {
+                    line = line.substring(0, line.indexOf(name)) + hashedName;
+                }
+            }
+            renamed.add(line);
+        }
+        return renamed;
+    }
+
+    public static synchronized boolean isImmutable(String name) {
+        return names.containsValue(name);
+    }
+
+    // hashed names of earlier versions
+    private static void prune() {
+        File[] entries = new File(Bundle.resourcePath).listFiles();
+        for (File entry: entries == null ? new File[0] : entries) {
+            Matcher m = hashed.matcher(entry.getName());
+            if (m.matches() && names.containsKey(m.group(1)+"."+m.group(3)) && !names.containsValue(entry.getName())) {
+                entry.delete();
+            }
+        }
+    }
+
+    private static byte[] manifest() {
+        StringBuilder json = new StringBuilder("{\"files\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> name: names.entrySet()) {
+            if (!first) { json.append(','); }
+            json.append(Json.quote(name.getKey())).append(':').append(Json.quote(name.getValue()));
+            first = false;
+        }
+        json.append("},\"immutable\":[");
+        first = true;
+        for (String hashedName: names.values()) {
+            if (!first) { json.append(','); }
+            json.append(Json.quote(hashedName));
+            first = false;
+        }
+        json.append("]}\n");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
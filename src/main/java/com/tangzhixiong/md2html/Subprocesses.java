@@ -0,0 +1,202 @@
+package com.tangzhixiong.md2html;
+
+import java.io.*;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// every external process goes through here:
+//
+//  -   at most Config.maxProcesses (default: Config.jobs) short-lived jobs at a time (waiting for
+//      a slot doesn't count against the timeout)
+//  -   stdin is written on the calling thread while stdout and stderr are drained on threads of
+//      their own, so a chatty or a stalled process can't block us, and a hung one can't block its
+//      pipes
+//  -   after Config.processTimeoutMillis the process is destroyed (forcibly), even while we are still
+//      writing to it (the write fails then), as it is when the calling thread is interrupted (a
+//      cancelled rebuild) once the input is written
+//  -   whatever is still running when the JVM exits is destroyed too
+public class Subprocesses {
+    // what goes into the process' stdin; it is closed afterwards. runs on the calling thread (its log
+    // lines go where the caller's do), so it can stream what it writes as it produces it
+    public interface Input {
+        void writeTo(OutputStream stdin) throws IOException;
+    }
+
+    public static class Result {
+        public final int exitValue; // -1 if timed out
+        public final boolean timedOut;
+        public final String messages; // stderr (and stdout, if not captured)
+        public final IOException inputError;
+
+        Result(int exitValue, boolean timedOut, String messages, IOException inputError) {
+            this.exitValue = exitValue;
+            this.timedOut = timedOut;
+            this.messages = messages;
+            this.inputError = inputError;
+        }
+
+        public boolean succeeded() {
+            return !timedOut && exitValue == 0 && inputError == null;
+        }
+
+        // one line for the log, null if it succeeded
+        public String describe(String name) {
+            if (timedOut) {
+                return name+" timed out after "+Config.processTimeoutMillis+" ms";
+            } else if (exitValue != 0) {
+                return name+" exited with "+exitValue;
+            } else if (inputError != null) {
+                return inputError.toString();
+            }
+            return null;
+        }
+    }
+
+    private static final long drainMillis = 1000; // for pipes after the process is gone
+    private static final Set<Process> live = ConcurrentHashMap.newKeySet();
+    private static Semaphore slots = null;
+    private static final ExecutorService io = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "subprocess-io-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("subprocess-reaper") {
+            @Override
+            public void run() {
+                for (Process p: live) {
+                    p.destroyForcibly();
+                }
+            }
+        });
+    }
+
+    private static synchronized Semaphore getSlots() {
+        if (slots == null) {
+            int max = Config.maxProcesses > 0 ? Config.maxProcesses : Config.jobs;
+            slots = new Semaphore(Math.max(1, max), true);
+        }
+        return slots;
+    }
+
+    // runs cmds to completion: stdin from input (may be null), stdout to stdout (null: into messages)
+    public static Result run(List<String> cmds, final Input input, OutputStream stdout)
+            throws IOException, InterruptedException {
+        Semaphore slots = getSlots();
+        slots.acquire();
+        Process p = null;
+        try {
+            p = start(new ProcessBuilder().command(cmds));
+            final ByteArrayOutputStream messages = new ByteArrayOutputStream();
+            Future<?> out = pump(p.getInputStream(), stdout != null ? stdout : messages);
+            Future<?> err = pump(p.getErrorStream(), messages);
+            Future<Boolean> timer = watch(p);
+
+            IOException inputError = null;
+            try (OutputStream os = new BufferedOutputStream(p.getOutputStream())) {
+                if (input != null) {
+                    input.writeTo(os);
+                }
+            } catch (IOException e) {
+                inputError = e;
+            }
+            boolean exited;
+            try {
+                exited = timer.get();
+            } catch (ExecutionException e) {
+                exited = false; // can't happen, the timer only waits
+            }
+            if (!exited || p.exitValue() != 0) {
+                // broken pipe: the process quit early (or was killed), its exit value and messages tell why
+                inputError = null;
+            }
+            // nothing worth waiting for from a killed one
+            long deadline = System.currentTimeMillis() + (exited ? drainMillis : 0);
+            finish(out, deadline);
+            finish(err, deadline);
+            return new Result(exited ? p.exitValue() : -1, !exited, messages.toString(), inputError);
+        } finally {
+            if (p != null) {
+                // interrupted, or something above threw: nothing of it may stay behind
+                if (p.isAlive()) {
+                    p.destroyForcibly();
+                }
+                live.remove(p);
+            }
+            slots.release();
+        }
+    }
+
+    // waits for the process on an io thread, destroys it at the timeout; true if it exited by itself
+    private static Future<Boolean> watch(final Process p) {
+        return io.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                if (p.waitFor(Config.processTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                p.destroyForcibly();
+                p.waitFor(drainMillis, TimeUnit.MILLISECONDS);
+                return false;
+            }
+        });
+    }
+
+    // long-lived processes (pandoc-server workers): not limited, not timed, but still reaped at exit
+    public static Process start(ProcessBuilder pb) throws IOException {
+        BuildStats.subprocess(pb.command());
+        if (Config.logCommands) {
+            Utility.log("%s\n", pb.command());
+        }
+        Process p = pb.start();
+        live.add(p);
+        return p;
+    }
+
+    public static void destroy(Process p) {
+        p.destroyForcibly();
+        live.remove(p);
+    }
+
+    private static Future<?> pump(final InputStream is, final OutputStream os) {
+        return io.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try (InputStream in = is) {
+                    byte[] buf = new byte[8192];
+                    while (true) {
+                        int hasRead;
+                        try {
+                            hasRead = in.read(buf);
+                        } catch (IOException e) {
+                            break; // destroyed
+                        }
+                        if (hasRead < 0) { break; }
+                        os.write(buf, 0, hasRead);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void finish(Future<?> pump, long deadline) throws InterruptedException, IOException {
+        try {
+            pump.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause(); // couldn't write the output
+            }
+        } catch (TimeoutException e) {
+            // a child of the process still holds the pipe
+            pump.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.tangzhixiong.md2html;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// pandoc (1.x) template syntax: $var$, $$, $if(var)$..$else$..$endif$, $for(var)$..$sep$..$endfor$
+public class Template {
+    private static abstract class Node {
+        abstract void render(Map<String, Object> vars, StringBuilder out);
+    }
+
+    private static class Text extends Node {
+        final String text;
+        Text(String text) { this.text = text; }
+        void render(Map<String, Object> vars, StringBuilder out) { out.append(text); }
+    }
+
+    private static class Var extends Node {
+        final String name;
+        Var(String name) { this.name = name; }
+        void render(Map<String, Object> vars, StringBuilder out) { append(vars.get(name), out); }
+    }
+
+    private static class If extends Node {
+        final String name;
+        final List<Node> then = new ArrayList<>();
+        final List<Node> otherwise = new ArrayList<>();
+        If(String name) { this.name = name; }
+        void render(Map<String, Object> vars, StringBuilder out) {
+            renderAll(isTruthy(vars.get(name)) ? then : otherwise, vars, out);
+        }
+    }
+
+    private static class For extends Node {
+        final String name;
+        final List<Node> body = new ArrayList<>();
+        final List<Node> sep = new ArrayList<>();
+        For(String name) { this.name = name; }
+        void render(Map<String, Object> vars, StringBuilder out) {
+            Object value = vars.get(name);
+            if (!isTruthy(value)) { return; }
+            List<?> items = value instanceof List ? (List<?>) value : java.util.Collections.singletonList(value);
+            Object saved = vars.get(name);
+            boolean first = true;
+            for (Object item: items) {
+                if (!first) { renderAll(sep, vars, out); }
+                first = false;
+                vars.put(name, item);
+                renderAll(body, vars, out);
+            }
+            vars.put(name, saved);
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    public static Template compile(String source) {
+        Template template = new Template();
+        ArrayList<List<Node>> stack = new ArrayList<>();
+        ArrayList<Node> owners = new ArrayList<>();
+        List<Node> current = template.nodes;
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c != '$') {
+                text.append(c);
+                ++i;
+                continue;
+            }
+            int end = source.indexOf('$', i+1);
+            if (end < 0) {
+                text.append(source.substring(i));
+                break;
+            }
+            String tag = source.substring(i+1, end);
+            if (tag.isEmpty()) {
+                text.append('$');
+                i = end+1;
+                continue;
+            }
+            boolean isDirective = tag.startsWith("if(") || tag.startsWith("for(")
+                    || tag.equals("else") || tag.equals("endif") || tag.equals("sep") || tag.equals("endfor");
+            if (!isDirective && !isVariableName(tag)) {
+                text.append(c);
+                ++i;
+                continue;
+            }
+            int next = end+1;
+            if (isDirective && aloneOnLine(source, i, end)) {
+                // drop the directive's own line, like pandoc does
+                int lineStart = text.lastIndexOf("\n")+1;
+                text.setLength(lineStart);
+                if (next < source.length() && source.charAt(next) == '\n') { ++next; }
+            }
+            if (text.length() > 0) {
+                current.add(new Text(text.toString()));
+                text.setLength(0);
+            }
+            if (tag.startsWith("if(")) {
+                If node = new If(tag.substring(3, tag.length()-1));
+                current.add(node);
+                stack.add(current);
+                owners.add(node);
+                current = node.then;
+            } else if (tag.startsWith("for(")) {
+                For node = new For(tag.substring(4, tag.length()-1));
+                current.add(node);
+                stack.add(current);
+                owners.add(node);
+                current = node.body;
+            } else if (tag.equals("else") && !owners.isEmpty() && owners.get(owners.size()-1) instanceof If) {
+                current = ((If) owners.get(owners.size()-1)).otherwise;
+            } else if (tag.equals("sep") && !owners.isEmpty() && owners.get(owners.size()-1) instanceof For) {
+                current = ((For) owners.get(owners.size()-1)).sep;
+            } else if ((tag.equals("endif") || tag.equals("endfor")) && !stack.isEmpty()) {
+                current = stack.remove(stack.size()-1);
+                owners.remove(owners.size()-1);
+            } else if (!isDirective) {
+                current.add(new Var(tag));
+            }
+            i = next;
+        }
+        if (text.length() > 0) {
+            current.add(new Text(text.toString()));
+        }
+        return template;
+    }
+
+    public String render(Map<String, Object> vars) {
+        StringBuilder out = new StringBuilder();
+        renderAll(nodes, vars, out);
+        return out.toString();
+    }
+
+    private static void renderAll(List<Node> nodes, Map<String, Object> vars, StringBuilder out) {
+        for (Node node: nodes) {
+            node.render(vars, out);
+        }
+    }
+
+    private static void append(Object value, StringBuilder out) {
+        if (value == null || Boolean.FALSE.equals(value)) { return; }
+        if (value instanceof List) {
+            for (Object item: (List<?>) value) { append(item, out); }
+        } else {
+            out.append(value);
+        }
+    }
+
+    private static boolean isTruthy(Object value) {
+        if (value == null || Boolean.FALSE.equals(value)) { return false; }
+        if (value instanceof List) { return !((List<?>) value).isEmpty(); }
+        return !value.toString().isEmpty();
+    }
+
+    private static boolean isVariableName(String tag) {
+        for (int k = 0; k < tag.length(); ++k) {
+            char c = tag.charAt(k);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') { return false; }
+        }
+        return true;
+    }
+
+    private static boolean aloneOnLine(String source, int start, int end) {
+        for (int k = start-1; k >= 0 && source.charAt(k) != '\n'; --k) {
+            if (!Character.isWhitespace(source.charAt(k))) { return false; }
+        }
+        for (int k = end+1; k < source.length() && source.charAt(k) != '\n'; ++k) {
+            if (!Character.isWhitespace(source.charAt(k))) { return false; }
+        }
+        return true;
+    }
+}
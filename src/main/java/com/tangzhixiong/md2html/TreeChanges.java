@@ -0,0 +1,70 @@
+package com.tangzhixiong.md2html;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+// what a watch backend saw, applied to Bundle's file index and handed to the rebuild scheduler.
+// native events and polling diffs both end up here, so every backend behaves the same.
+public class TreeChanges {
+    private final RebuildScheduler scheduler;
+    private boolean treeChanged = false;
+
+    public TreeChanges(RebuildScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // created or modified, file or directory
+    public synchronized void changed(File hit) throws IOException {
+        if (hit.isDirectory()) {
+            // new (or moved in): watch it, build what's inside
+            if (Bundle.isKnownDirectory(hit.getCanonicalPath()) || Bundle.isIgnoredDirectory(hit)) {
+                return;
+            }
+            for (String inputPath: Bundle.addDirectory(hit)) {
+                scheduler.changed(inputPath);
+            }
+            treeChanged = true;
+        } else if (hit.isFile()) {
+            // collected and deduplicated, rebuilt once things calm down
+            String inputPath = hit.getCanonicalPath();
+            treeChanged |= Bundle.addFile(inputPath);
+            scheduler.changed(inputPath);
+        }
+    }
+
+    // deleted, or renamed (the new name comes as a change)
+    public synchronized void deleted(String path) {
+        if (Bundle.isKnownDirectory(path)) {
+            for (Map.Entry<String, String> gone: Bundle.removeDirectory(path).entrySet()) {
+                scheduler.deleted(gone.getKey(), gone.getValue());
+            }
+            treeChanged = true;
+        } else {
+            String outputPath = Bundle.removeFile(path);
+            if (outputPath != null) {
+                scheduler.deleted(path, outputPath);
+                treeChanged = true;
+            }
+        }
+    }
+
+    // events were lost, compare this part of the tree with what we know
+    public synchronized void overflow(String dir) {
+        for (Map.Entry<String, String> gone: Bundle.rescan(dir).entrySet()) {
+            scheduler.deleted(gone.getKey(), gone.getValue());
+        }
+        for (String inputPath: Bundle.filesUnder(dir)) {
+            scheduler.changed(inputPath);
+        }
+        treeChanged = true;
+    }
+
+    // after a round of events
+    public synchronized void flush() {
+        if (treeChanged) {
+            NavIndex.write();
+            treeChanged = false;
+        }
+    }
+}
@@ -1,36 +1,158 @@
 package com.tangzhixiong.md2html;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Utility {
+    // when set (by Pipeline workers), log lines are collected here and flushed as a whole
+    private static final ThreadLocal<StringBuilder> logBuffer = new ThreadLocal<>();
+
+    public static void beginLogBuffer() {
+        logBuffer.set(new StringBuilder());
+    }
+
+    public static void endLogBuffer() {
+        StringBuilder sb = logBuffer.get();
+        logBuffer.remove();
+        if (sb != null && sb.length() > 0) {
+            synchronized (System.out) {
+                System.out.print(sb);
+                System.out.flush();
+            }
+        }
+    }
+
+    public static void log(String format, Object... args) {
+        String msg = args.length == 0 ? format : String.format(format, args);
+        StringBuilder sb = logBuffer.get();
+        if (sb != null) {
+            sb.append(msg);
+        } else {
+            System.out.print(msg);
+        }
+    }
+
     public static void clean(String inputPath) {
         clean(inputPath, inputPath);
     }
+
+    // like 'iconv -f utf-8 -t utf-8 -c': drops invalid utf-8, in-process. valid files (the usual case)
+    // are only read, and a file cleaned in place is rewritten from its first bad byte on, without a
+    // temp file: the output never gets ahead of the input, dropping bytes only makes it shorter.
     public static void clean(String inputPath, String outputPath) {
-        if (!Config.hasIconv) {
-            return;
-        }
+        Path in = new File(inputPath).toPath();
+        Path out = new File(outputPath).toPath();
         try {
-            File temp = File.createTempFile("iconv-"+outputPath.hashCode()+"-", ".txt");
-            System.out.println(temp.getCanonicalPath());
-            ProcessBuilder pb = new ProcessBuilder().command(new String[]{
-                    "iconv",
-                    "-f", "utf-8",
-                    "-t", "utf-8",
-                    "-c", inputPath
-            });
-            pb.redirectOutput(temp);
-            Process p = pb.start();
-            p.waitFor(5, TimeUnit.SECONDS);
-            Files.move(temp.toPath(), new File(outputPath).toPath(), StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception e) {
+            boolean inPlace = in.toAbsolutePath().normalize().equals(out.toAbsolutePath().normalize());
+            long offset;
+            try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ)) {
+                offset = firstInvalidUtf8(channel);
+            }
+            if (offset < 0) {
+                if (!inPlace) {
+                    Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return;
+            }
+            if (Config.verboseMode) {
+                log("[L] %s: invalid utf-8 at byte %d, dropped\n", inputPath, offset);
+            }
+            if (inPlace) {
+                try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    long end = transcodeUtf8(channel, offset, channel, offset);
+                    channel.truncate(end);
+                }
+            } else {
+                try (
+                    FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+                    FileChannel dst = FileChannel.open(out, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                ) {
+                    src.transferTo(0, offset, dst);
+                    transcodeUtf8(src, offset, dst, offset);
+                }
+            }
+        } catch (IOException e) {
+            log("[X] %s: %s\n", inputPath, e);
+        }
+    }
+
+    // position of the first byte that is not valid utf-8, -1 if there is none
+    private static long firstInvalidUtf8(FileChannel channel) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer bytes = ByteBuffer.allocate(64*1024);
+        CharBuffer chars = CharBuffer.allocate(64*1024);
+        long consumed = 0;
+        boolean eof = false;
+        while (!eof) {
+            eof = channel.read(bytes) < 0;
+            bytes.flip();
+            CoderResult result;
+            do {
+                chars.clear();
+                result = decoder.decode(bytes, chars, eof);
+            } while (result.isOverflow());
+            if (result.isError()) {
+                return consumed + bytes.position();
+            }
+            consumed += bytes.position();
+            bytes.compact();
+        }
+        chars.clear();
+        if (decoder.flush(chars).isError()) {
+            return consumed;
+        }
+        return -1;
+    }
+
+    // decodes src from readPos (dropping what's invalid), encodes to dst at writePos; returns the end in dst
+    private static long transcodeUtf8(FileChannel src, long readPos, FileChannel dst, long writePos)
+            throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.IGNORE)
+                .onUnmappableCharacter(CodingErrorAction.IGNORE);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        ByteBuffer bytes = ByteBuffer.allocate(64*1024);
+        CharBuffer chars = CharBuffer.allocate(64*1024);
+        ByteBuffer encoded = ByteBuffer.allocate(64*1024*3);
+        boolean eof = false;
+        while (!eof) {
+            int n = src.read(bytes, readPos);
+            eof = n < 0;
+            if (n > 0) { readPos += n; }
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, eof);
+                if (eof && !result.isOverflow()) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                encoder.encode(chars, encoded, eof && !result.isOverflow());
+                chars.compact();
+                encoded.flip();
+                while (encoded.hasRemaining()) {
+                    writePos += dst.write(encoded, writePos);
+                }
+                encoded.clear();
+            } while (result.isOverflow());
+            bytes.compact();
         }
+        return writePos;
     }
 
     public static void printInclusionLogs() {
@@ -41,6 +163,9 @@ public class Utility {
             }
         }
     }
+    // '-res': everything under srcDirPath into dstDirPath as it is, in parallel. always real copies,
+    // whatever '-assets' says: we write into _md2html ourselves, a link would take that into the
+    // user's files. nothing is converted, and nothing goes into the build manifest
     public static void copyResources(String srcDirPath, String dstDirPath) {
         final ArrayDeque<File> queue = new ArrayDeque<>();
         File srcDir = new File(srcDirPath);
@@ -56,6 +181,7 @@ public class Utility {
         } catch (Exception e) {
             return;
         }
+        LinkedHashMap<String, String> mapping = new LinkedHashMap<>();
         queue.add(srcDir);
         while (!queue.isEmpty()) {
             File pwd = queue.poll();
@@ -68,7 +194,7 @@ public class Utility {
                     try {
                         final String srcFilePath = entry.getCanonicalPath();
                         final String dstFilePath = dstDirPath + srcFilePath.substring(srcDirPath.length());
-                        mappingFile(srcFilePath, dstFilePath, !Config.silentMode);
+                        mapping.put(srcFilePath, dstFilePath);
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -77,6 +203,31 @@ public class Utility {
                 }
             }
         }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Config.jobs));
+        for (final Map.Entry<String, String> entry: mapping.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File outputFile = new File(entry.getValue());
+                    try {
+                        mkdirHyphenPDollarAtD(outputFile);
+                        boolean written = AssetMirror.mirror(new File(entry.getKey()), outputFile, "copy");
+                        if (!Config.silentMode) {
+                            log(written ? "[C] %s -> %s\n" : "[ ] %s -> %s\n", entry.getKey(), entry.getValue());
+                        }
+                    } catch (IOException e) {
+                        log("[X] %s -> %s: %s\n", entry.getKey(), entry.getValue(), e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
     }
 
     public static String resolveToRoot(String fullname, String dirname) {
@@ -96,123 +247,389 @@ public class Utility {
         File atd = dest.getParentFile();
         if (!atd.exists()) {
             if (Config.verboseMode) {
-                System.out.println("[/] making directory: "+atd.getAbsolutePath());
+                log("[/] making directory: %s\n", atd.getAbsolutePath());
             }
             atd.mkdirs();
         }
     }
 
-    public static void md2html(String outputPath) {
-        clean(outputPath);
-        int idx = outputPath.lastIndexOf(".");
-        String suffix = outputPath.substring(idx+1);
-        String outputPathHTML = outputPath.substring(0, idx) + ".html";
-        String pathBasedOnRoot = outputPath.substring(Bundle.dstDir.length()+1);
-        ArrayList<String> cmds = new ArrayList<>();
-        {
-            cmds.add( "pandoc" ); cmds.add( "-S" ); cmds.add( "-s" );
-            cmds.add( "--ascii" );
-            cmds.add( "--mathjax" );
-            cmds.add( "--variable=rootdir:"+resolveToRoot(outputPath, Bundle.dstDir) );
-            cmds.add( "--variable=md2htmldir:"+Bundle.resourceDirName );
-            cmds.add( "--variable=thispath:"+pathBasedOnRoot );
-            if (Bundle.mdExts.contains(suffix.toLowerCase())) {
-                cmds.add( "--variable=ismarkdown:true" );
-                cmds.add( "--template="+Bundle.htmltemplatePath );
-                cmds.add( "--from=markdown+abbreviations+east_asian_line_breaks+emoji" );
-                cmds.add( outputPath );
-                cmds.add( Bundle.dotmd2htmlymlPath );
-            } else {
-                cmds.add( "--variable=ismarkdown:false" );
-                cmds.add( "--template="+Bundle.htmltemplatePath );
-                cmds.add( outputPath );
+    public static boolean md2html(String outputPath) {
+        return md2html(outputPath, null);
+    }
+
+    // source != null: pipe mode, the page is streamed into the converter
+    public static boolean md2html(String outputPath, PageSource source) {
+        Converter converter = Converters.forPath(outputPath);
+        File spooled = null;
+        if (source != null && RenderCache.isEnabled()) {
+            // the key and the converter both need the page, but a source can only be written out
+            // once: expanded (and logged, and kept with '-keep-md') once into a temp file, then
+            // replayed from there, so the page isn't held in memory either
+            try {
+                spooled = spool(source);
+                source = replay(spooled);
+            } catch (IOException e) {
+                log("[X] %s: %s\n", outputPath, e.getMessage());
+                return false;
             }
-            cmds.add( "--output="+outputPathHTML );
         }
         try {
+            return md2html(outputPath, source, converter);
+        } finally {
+            if (spooled != null) {
+                spooled.delete();
+            }
+        }
+    }
+
+    private static boolean md2html(String outputPath, PageSource source, Converter converter) {
+        int idx = outputPath.lastIndexOf(".");
+        String outputPathHTML = outputPath.substring(0, idx) + ".html";
+        String cacheKey = RenderCache.isEnabled() ? RenderCache.key(outputPath, converter, source) : null;
+        boolean succeeded;
+        if (cacheKey != null && RenderCache.fetch(cacheKey, outputPathHTML)) {
             if (!Config.silentMode) {
-                System.out.printf("[P] %s -> %s\n", outputPath, outputPathHTML);
+                log("[P] %s -> %s (cached)\n", outputPath, outputPathHTML);
             }
-            if (Config.logCommands) {
-                System.out.println(cmds);
+            succeeded = true;
+        } else {
+            if (!Config.silentMode) {
+                log("[P] %s -> %s\n", outputPath, outputPathHTML);
             }
-            Process p = new ProcessBuilder().inheritIO().command(cmds).start();
             try {
-                p.waitFor(10, TimeUnit.SECONDS);
-                // ArrayList<String> cmds2 = new ArrayList<>(); cmds2.add("cat"); cmds2.add(outputPath);
-                // Process p2 = new ProcessBuilder().inheritIO().command(cmds2).start();
-                // p2.waitFor(10, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                e.printStackTrace();
+                // may be a link into the render cache, converters must not write through it
+                Files.deleteIfExists(new File(outputPathHTML).toPath());
+            } catch (IOException e) {
+                log("[X] %s: %s\n", outputPathHTML, e);
+                return false;
+            }
+            succeeded = source == null
+                    ? converter.convert(outputPath, outputPathHTML)
+                    : converter.convert(outputPath, source, outputPathHTML);
+            if (succeeded && cacheKey != null) {
+                RenderCache.store(cacheKey, outputPathHTML);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
 
         // copy README.html -> index.html
-        if (Config.readmeAsMainIndex && outputPathHTML.equals(Config.dstDirPath+File.separator+"README.html")) {
-            String readmeHTML = outputPathHTML;
-            String indexHTML = readmeHTML.substring(0, readmeHTML.lastIndexOf("README.html")) + "index.html";
-            mappingFile(readmeHTML, indexHTML);
+        String indexHTML = readmeIndex(outputPathHTML);
+        if (succeeded && indexHTML != null) {
+            succeeded = mappingFile(outputPathHTML, indexHTML);
         }
+        return succeeded;
     }
 
-    public static void mappingFile(String inputPath, String outputPath) {
+    // with '-readme-as-index': dst/index.html for dst/README.html, null for every other page
+    private static String readmeIndex(String outputPathHTML) {
+        String readmeHTML = Config.dstDirPath+File.separator+"README.html";
+        if (!Config.readmeAsMainIndex || !outputPathHTML.equals(readmeHTML)) {
+            return null;
+        }
+        return Config.dstDirPath+File.separator+"index.html";
+    }
+
+    public static boolean mappingFile(String inputPath, String outputPath) {
         //  [+] 'D:\tzx\git\md2html\README.md' -> 'D:\tzx\git\md2html-publish\README.html'
-        mappingFile(inputPath, outputPath, !Config.silentMode);
+        return mappingFile(inputPath, outputPath, !Config.silentMode);
     }
 
-    public static void mappingFile(String inputPath, String outputPath, boolean writeLog) {
+    // returns false if the file should have been updated but could not be
+    public static boolean mappingFile(String inputPath, String outputPath, boolean writeLog) {
         File inputFile = new File(inputPath);
         File outputFile = new File(outputPath);
         if (!inputFile.exists()) {
-            System.out.println("[L] '"+inputFile.getAbsolutePath()+"' does not exists.");
-            return;
+            log("[L] '%s' does not exists.\n", inputFile.getAbsolutePath());
+            return false;
         }
-        if (!outputFile.exists() || inputFile.lastModified() > outputFile.lastModified()) {
+        long start = System.nanoTime();
+        Object event = BuildStats.beginFile(inputPath);
+        boolean isMdFile = isMarkdownFile(inputPath);
+        // what the source is before it is read: a save during the build mustn't be recorded as built
+        String sourceHash = BuildManifest.hashFile(inputPath);
+        String fingerprint = BuildManifest.fingerprint(sourceHash, isMdFile,
+                BuildManifest.hashes(IncludeGraph.getIncludes(inputPath)));
+        if (!outputsExist(outputPath, isMdFile) || !BuildManifest.isUpToDate(inputPath, fingerprint)) {
             mkdirHyphenPDollarAtD(outputFile);
+            BuildManifest.forget(inputPath);
+            Collection<String> includes = Collections.emptyList();
+            // the includes as they were read
+            Map<String, String> read = Collections.emptyMap();
+            boolean succeeded = true;
+            boolean written = true;
             try {
-                // expand markdown file
-                boolean isMdFile = isMarkdownFile(inputPath);
-                if (isMdFile) {
+                if (isPiped(inputPath)) {
+                    // src/dir/file.md -> converter -> dst/dir/file.html
+                    final String filename = inputFile.getCanonicalPath();
+                    final InclusionParams params = Config.expandMarkdown ? new InclusionParams() : null;
+                    final String keptPath = Config.keepMarkdown ? outputPath : null;
+                    if (writeLog) {
+                        log("[%s] %s -> %s\n", params != null ? "E" : "C", inputPath, outputPath);
+                    }
+                    // expansion happens inside the conversion here
+                    BuildStats.Span span = BuildStats.begin("conversion", inputPath);
+                    succeeded = md2html(outputPath, new PageSource() {
+                        @Override
+                        public void writeTo(LineSink sink) throws IOException {
+                            pipePage(filename, params, keptPath, sink);
+                        }
+                    });
+                    BuildStats.end(span);
+                    if (params != null) {
+                        IncludeGraph.update(params.edges);
+                        includes = IncludeGraph.getIncludes(inputPath);
+                        read = params.hashes;
+                    } else {
+                        IncludeGraph.remove(inputPath);
+                    }
+                } else if (isMdFile) {
+                    // expand markdown file
                     // src/dir/file.md -> dst/dir/file.md
                     if (!Config.expandMarkdown) {
-                        System.out.println(Config.expandMarkdown);
+                        IncludeGraph.remove(inputPath);
                         if (writeLog) {
-                            System.out.printf("[C] %s -> %s\n", inputPath, outputPath);
+                            log("[C] %s -> %s\n", inputPath, outputPath);
                         }
+                        BuildStats.Span span = BuildStats.begin("copy", inputPath);
                         Files.copy(inputFile.toPath(), outputFile.toPath()
                                 , StandardCopyOption.REPLACE_EXISTING
                                 , StandardCopyOption.COPY_ATTRIBUTES);
+                        BuildStats.end(span);
                     } else {
                         String filename = inputFile.getCanonicalPath();
-                        List<String> lines = expandLines(filename);
+                        InclusionParams params = new InclusionParams();
                         if (writeLog) {
-                            System.out.printf("[E] %s -> %s\n", inputPath, outputPath);
+                            log("[E] %s -> %s\n", inputPath, outputPath);
                         }
-                        dump(lines, outputFile, isMdFile);
+                        BuildStats.Span span = BuildStats.begin("expansion", inputPath);
+                        try (
+                            OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
+                        ) {
+                            expandLines(filename, params, true, lineWriter(os, isMdFile));
+                        }
+                        BuildStats.end(span);
+                        IncludeGraph.update(params.edges);
+                        includes = IncludeGraph.getIncludes(inputPath);
+                        read = params.hashes;
                     }
                     // dst/dir/file.md -> dst/dir/file.html
-                    md2html(outputPath);
+                    BuildStats.Span span = BuildStats.begin("conversion", inputPath);
+                    succeeded = md2html(outputPath);
+                    BuildStats.end(span);
                 } else {
+                    BuildStats.Span span = BuildStats.begin("copy", inputPath);
+                    written = AssetMirror.mirror(inputFile, outputFile);
+                    BuildStats.end(span);
                     if (writeLog) {
-                        System.out.printf("[C] %s -> %s\n", inputPath, outputPath);
+                        log(written ? "[C] %s -> %s\n" : "[ ] %s -> %s\n", inputPath, outputPath);
                     }
-                    Files.copy(inputFile.toPath(), outputFile.toPath()
-                                , StandardCopyOption.REPLACE_EXISTING
-                                , StandardCopyOption.COPY_ATTRIBUTES);
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                log("[X] %s -> %s: %s\n", inputPath, outputPath, e);
+                BuildStats.rebuilt(event, inputPath, start, false);
+                return false;
+            }
+            if (succeeded) {
+                LinkedHashMap<String, String> includeHashes = new LinkedHashMap<>();
+                for (String include: includes) {
+                    // not read at all: it wasn't there
+                    includeHashes.put(include, read.containsKey(include) ? read.get(include) : "-");
+                }
+                BuildManifest.record(inputPath, BuildManifest.fingerprint(sourceHash, isMdFile, includeHashes), includes);
+                published(outputPath, isMdFile, written);
             }
+            BuildStats.rebuilt(event, inputPath, start, succeeded);
+            return succeeded;
         } else {
             // no need to update
+            BuildStats.skipped(event);
             if (writeLog) {
-                System.out.printf("[ ] %s -> %s\n", inputPath, outputPath);
+                log("[ ] %s -> %s\n", inputPath, outputPath);
+            }
+            published(outputPath, isMdFile, false);
+            // README's copy is published (or put back, if it is gone) with it
+            if (isMdFile) {
+                String outputPathHTML = outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html";
+                String indexHTML = readmeIndex(outputPathHTML);
+                if (indexHTML != null) {
+                    return mappingFile(outputPathHTML, indexHTML, writeLog);
+                }
+            }
+        }
+        return true;
+    }
+
+    // the outputs of a file that is (now) up to date: the search index, their .gz sidecars, the
+    // archive, the changeset. written: they were just (re)written, whatever their mtimes say
+    private static void published(String outputPath, boolean isConverted, boolean written) {
+        ArrayList<String> outputs = new ArrayList<>(2);
+        if (!isPiped(outputPath) || Config.keepMarkdown) {
+            outputs.add(outputPath);
+        }
+        if (isConverted) {
+            outputs.add(outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html");
+            SearchIndex.record(new File(outputs.get(outputs.size()-1)), written);
+        }
+        for (String output: outputs) {
+            // also drops the stale sidecar of a page rebuilt without '-gzip'
+            File gz = Precompressor.sidecar(output, written);
+            publish(new File(output), written);
+            if (gz != null) {
+                publish(gz, written);
             }
         }
     }
 
+    private static void publish(File file, boolean written) {
+        PublishArchive.add(file);
+        Changeset.record(file, written);
+    }
+
+    // the same for _md2html, which isn't built file by file; md2html's own state stays out
+    public static void publishedResources() {
+        ArrayDeque<File> queue = new ArrayDeque<>();
+        queue.add(new File(Bundle.resourcePath));
+        while (!queue.isEmpty()) {
+            File[] entries = queue.poll().listFiles();
+            for (File entry: entries == null ? new File[0] : entries) {
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    queue.add(entry);
+                } else if (Precompressor.isOrphan(entry)) {
+                    entry.delete();
+                } else if (!name.endsWith(Precompressor.suffix) && !name.endsWith(".tmp")
+                        && !name.equals(BuildManifest.manifestRes) && !name.equals(BuildStats.statsRes)
+                        && !name.equals(Changeset.manifestRes) && !name.equals(SearchIndex.manifestRes)) {
+                    File gz = Precompressor.sidecar(entry.getPath(), false);
+                    publish(entry, false);
+                    if (gz != null) {
+                        publish(gz, false);
+                    }
+                }
+            }
+        }
+    }
+
+    // '-pipe': markdown pages go through the converter's stdin, not through dst/dir/file.md
+    public static boolean isPiped(String path) {
+        return Config.pipeMarkdown && Bundle.mdExts.contains(getExt(path).toLowerCase());
+    }
+
+    // the page's text (expanded if params != null), also kept at keptPath if not null
+    private static void pipePage(String filename, InclusionParams params, String keptPath, LineSink sink)
+            throws IOException {
+        OutputStream kept = null;
+        try {
+            if (keptPath != null) {
+                kept = new BufferedOutputStream(new FileOutputStream(keptPath));
+                final LineSink writer = lineWriter(kept, Charset.defaultCharset());
+                final LineSink converter = sink;
+                sink = new LineSink() {
+                    @Override
+                    public void line(String line) throws IOException {
+                        writer.line(line);
+                        converter.line(line);
+                    }
+                };
+            }
+            if (params != null) {
+                expandLines(filename, params, true, folding(sink, true));
+            } else {
+                streamLinesNaive(filename, sink);
+            }
+        } finally {
+            if (kept != null) { kept.close(); }
+        }
+    }
+
+    // for converters that want the whole page in memory anyway
+    public static String toText(PageSource source) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        source.writeTo(new LineSink() {
+            @Override
+            public void line(String line) {
+                sb.append(line).append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    // a source written out into a temp file (utf-8, one line per line)
+    private static File spool(PageSource source) throws IOException {
+        File file = Files.createTempFile("md2html-", ".md").toFile();
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            source.writeTo(lineWriter(os, StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    // a spooled page, as a source that can be written out any number of times
+    public static PageSource replay(final File file) {
+        return new PageSource() {
+            @Override
+            public void writeTo(LineSink sink) throws IOException {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        sink.line(line);
+                    }
+                }
+            }
+        };
+    }
+
+    // a page already in memory, as a source that can be written out any number of times
+    public static PageSource replay(final String text) {
+        return new PageSource() {
+            @Override
+            public void writeTo(LineSink sink) throws IOException {
+                String page = text.endsWith("\n") ? text.substring(0, text.length()-1) : text;
+                for (String line: page.split("\n", -1)) {
+                    sink.line(line);
+                }
+            }
+        };
+    }
+
+    // the source is gone: dst/dir/file.md (and .html), and everything we remembered about it
+    public static void deleteOutputs(String inputPath, String outputPath) {
+        BuildManifest.forget(inputPath);
+        IncludeGraph.remove(inputPath);
+        ExpansionCache.remove(inputPath);
+        ArrayList<String> outputs = new ArrayList<>();
+        outputs.add(outputPath);
+        if (isMarkdownFile(outputPath)) {
+            outputs.add(outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html");
+        }
+        for (String output: outputs) {
+            try {
+                if (Files.deleteIfExists(new File(output).toPath()) && !Config.silentMode) {
+                    log("[D] %s\n", output);
+                }
+            } catch (IOException e) {
+                log("[X] %s: %s\n", output, e);
+            }
+        }
+    }
+
+    // dst/dir/file.md and, for converted files, dst/dir/file.html
+    public static boolean outputsExist(String outputPath, boolean isConverted) {
+        if (isPiped(outputPath) && !Config.keepMarkdown) {
+            return outputsExist(outputPath.substring(0, outputPath.lastIndexOf(".")) + ".html", false);
+        }
+        if (!new File(outputPath).exists()) {
+            return false;
+        }
+        if (!isConverted) {
+            return true;
+        }
+        int idx = outputPath.lastIndexOf(".");
+        return new File(outputPath.substring(0, idx) + ".html").exists();
+    }
+
     public static String getDirName(String path) {
         String dirname = ".";
         try {
@@ -234,50 +651,59 @@ public class Utility {
         return dirname;
     }
 
-    public static void updateCodeFragmentIfNecessary(String inputPath, String label, String outputPath) {
+    public static void updateCodeFragmentIfNecessary(String inputPath, final String label, String outputPath) {
         // input, inputFile, file suffix, highlighting code,
-        File inputFile = new File(inputPath);
+        final File inputFile = new File(inputPath);
         File outputFile = new File(outputPath);
         if (!inputFile.exists() || !inputFile.isFile() || inputFile.length() > 2048 ) {
             if (!Config.silentMode) {
-                System.out.printf("[X] %s -> %s\n", inputPath, outputPath);
+                log("[X] %s -> %s\n", inputPath, outputPath);
             }
             return;
         }
         if (!outputFile.exists() || inputFile.lastModified() > outputFile.lastModified()) {
-            Process proc = null;
-            try {
-                proc = Runtime.getRuntime().exec("pandoc -s -S --ascii");
+            if (Converters.pandocServer.getName().equals(Config.converter)) {
+                try {
+                    String fragment = String.format("~~~~~~~~~~~~~~~~~~~~~ {.%s .numberLines}\n", label)
+                            + NativeConverter.readLenient(inputFile)
+                            + "~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n";
+                    String html = Converters.pandocServer.convertText(fragment, null);
+                    if (html != null) {
+                        if (!Config.silentMode) {
+                            log("[C] %s -> %s\n", inputPath, outputPath);
+                        }
+                        Files.write(outputFile.toPath(), html.getBytes());
+                        return;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
-            catch (IOException e) {
-                e.printStackTrace();
+            if (!Config.silentMode) {
+                log("[C] %s -> %s\n", inputPath, outputPath);
             }
-            try (
-                    FileInputStream fis = new FileInputStream(inputFile);
-                    FileOutputStream fos = new FileOutputStream(outputFile);
-                    PrintStream ps = new PrintStream(proc.getOutputStream());
-            ) {
-                if (!Config.silentMode) {
-                    System.out.printf("[C] %s -> %s\n", inputPath, outputPath);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                Subprocesses.Result result = Subprocesses.run(Arrays.asList("pandoc", "-s", "-S", "--ascii"),
+                        new Subprocesses.Input() {
+                            @Override
+                            public void writeTo(OutputStream stdin) throws IOException {
+                                PrintStream ps = new PrintStream(stdin);
+                                ps.printf("~~~~~~~~~~~~~~~~~~~~~ {.%s .numberLines}\n", label);
+                                Files.copy(inputFile.toPath(), ps);
+                                ps.print("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n");
+                                ps.flush();
+                            }
+                        }, os);
+                if (!result.messages.isEmpty()) {
+                    log("%s", result.messages);
                 }
-                // pipe in
-                byte[] buf = new byte[1024];
-                int hasRead = 0;
-                ps.printf("~~~~~~~~~~~~~~~~~~~~~ {.%s .numberLines}\n", label);
-                while ((hasRead = fis.read(buf)) > 0) { ps.write(buf, 0, hasRead) ; }
-                ps.print("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~\n");
-                ps.close();
-                // pipe out
-                BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    fos.write(line.getBytes());
-                    fos.write("\n".getBytes());
+                if (!result.succeeded()) {
+                    log("[X] %s -> %s: %s\n", inputPath, outputPath, result.describe("pandoc"));
                 }
-                fos.close();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                log("[X] %s -> %s: %s\n", inputPath, outputPath, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -327,21 +753,45 @@ public class Utility {
     }
 
     public static List<String> expandLines(String inputPath) {
+        return expandLines(inputPath, new InclusionParams());
+    }
+
+    // params.edges collects, for every expanded file, what it included
+    public static List<String> expandLines(String inputPath, InclusionParams params) {
         if (Config.expandMarkdown) {
             String ext = getExt(inputPath);
-            return expandLines(inputPath, new InclusionParams(), Bundle.markupExts.contains(ext));
+            return expandLines(inputPath, params, Bundle.markupExts.contains(ext));
         } else {
             return getLinesNaive(inputPath);
         }
     }
 
     public static List<String> expandLines(String inputPath, InclusionParams params, boolean needExpansion) {
+        final ArrayList<String> lines = new ArrayList<>();
+        try {
+            expandLines(inputPath, params, needExpansion, new LineSink() {
+                @Override
+                public void line(String line) {
+                    lines.add(line);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return lines;
+    }
+
+    // streaming version: lines go to sink as soon as they are resolved, so memory grows with the
+    // include depth (one open reader per level), not with the size of the document.
+    // returns the number of lines written.
+    public static int expandLines(String inputPath, InclusionParams params, boolean needExpansion, LineSink sink)
+            throws IOException {
         if (!needExpansion) {
-            return getLinesNaive(inputPath);
+            params.read(inputPath, BuildManifest.hashFile(inputPath));
+            return streamLinesNaive(inputPath, sink);
         }
-        ArrayList<String> lines = new ArrayList<>();
         File file = new File(inputPath);
-        if (!file.isFile() || !file.canRead()) { return lines; }
+        if (!file.isFile() || !file.canRead()) { return 0; }
         String filename = null;
         String basename = null;
         try {
@@ -349,46 +799,75 @@ public class Utility {
             basename = file.getParentFile().getCanonicalPath();
         } catch (Exception e) {
             e.printStackTrace();
-            return lines;
+            return 0;
         }
         if (params.parents.contains(filename)) {
             String errLog = params.getErrorLog(filename);
             System.err.printf("Loop detected, %s will not be included.\n", inputPath);
             System.err.println(errLog);
-            lines.add(errLog); // print to markdown, so you can check these errors
-            Bundle.inclusionLogs.add(params.getInclusionInfo());
-            return lines;
+            sink.line(errLog); // print to markdown, so you can check these errors
+            params.log(params.getInclusionInfo());
+            ++params.loops;
+            return 1;
+        }
+        // a fragment expanded before (by this or another document) can be reused, unless it would
+        // reach one of our parents: then expand it again, so the loop is detected just like before
+        boolean isFragment = !params.parents.isEmpty();
+        if (isFragment) {
+            ExpansionCache.Entry cached = ExpansionCache.get(filename);
+            if (cached != null && Collections.disjoint(cached.hashes.keySet(), params.parents)) {
+                for (Map.Entry<String, String> hash: cached.hashes.entrySet()) {
+                    params.read(hash.getKey(), hash.getValue());
+                }
+                params.edges.putAll(cached.edges);
+                for (List<String> relative: cached.logs) {
+                    ArrayList<String> log = params.getInclusionInfo();
+                    log.addAll(relative);
+                    params.log(log);
+                }
+                for (String line: cached.lines) {
+                    sink.line(line);
+                }
+                return cached.lines.size();
+            }
         }
+        int depth = params.parents.size();
+        int readsMark = params.reads.size();
+        int logsMark = params.logs.size();
+        int loopsMark = params.loops;
+        params.read(filename, BuildManifest.hashFile(filename));
+        // fragments are recorded for ExpansionCache on the way through, up to a bound
+        LineRecorder out = new LineRecorder(sink, isFragment,
+                (int) Math.min(Config.expansionCacheLines / 4, Integer.MAX_VALUE));
         try (
                 Scanner scanner = new Scanner(file);
         ) {
             params.parents.add(filename);
+            params.edges.put(filename, new LinkedHashSet<String>());
             while (scanner.hasNextLine()) {
                 String line = scanner.nextLine();
                 InclusionParams paramsAnother = new InclusionParams();
                 if (canExpandLine(line, paramsAnother)) {
                     String otherfilepath = basename+File.separator+paramsAnother.path;
-                    List<String> moreLines = null;
                     try {
                         otherfilepath = new File(otherfilepath).getCanonicalPath();
-                        if (filename.equals(otherfilepath)) {
-                            moreLines = getLinesNaive(otherfilepath);
-                        } else {
-                            moreLines = expandLines(otherfilepath, params, isMarkdownFile(otherfilepath));
-                        }
-                        if (moreLines != null && moreLines.size() > 0) {
-                            Bundle.inclusionLogs.add(params.getInclusionInfo());
-                            ArrayList<String> log = new ArrayList<>();
-                            for (String ml: moreLines) {
-                                lines.add(params.pad + paramsAnother.pad + ml);
-                            }
-                        }
                     } catch (IOException e) {
                         e.printStackTrace();
                         continue;
                     }
+                    params.edges.get(filename).add(otherfilepath);
+                    LineSink padded = new PrefixSink(params.pad + paramsAnother.pad, out);
+                    int included;
+                    if (filename.equals(otherfilepath)) {
+                        included = streamLinesNaive(otherfilepath, padded);
+                    } else {
+                        included = expandLines(otherfilepath, params, isMarkdownFile(otherfilepath), padded);
+                    }
+                    if (included > 0) {
+                        params.log(params.getInclusionInfo());
+                    }
                 } else {
-                    lines.add(line);
+                    out.line(line);
                 }
             }
             scanner.close();
@@ -399,7 +878,74 @@ public class Utility {
         finally {
             params.parents.remove(inputPath);
         }
-        return lines;
+        if (isFragment && params.loops == loopsMark && out.recorded != null) {
+            LinkedHashMap<String, String> hashes = new LinkedHashMap<>();
+            LinkedHashMap<String, LinkedHashSet<String>> edges = new LinkedHashMap<>();
+            for (String read: params.reads.subList(readsMark, params.reads.size())) {
+                hashes.put(read, params.hashes.get(read));
+                if (params.edges.containsKey(read)) {
+                    edges.put(read, params.edges.get(read));
+                }
+            }
+            ArrayList<List<String>> logs = new ArrayList<>();
+            for (List<String> log: params.logs.subList(logsMark, params.logs.size())) {
+                logs.add(new ArrayList<>(log.subList(depth, log.size())));
+            }
+            ExpansionCache.put(filename, new ExpansionCache.Entry(out.recorded, hashes, edges, logs));
+        }
+        return out.count;
+    }
+
+    // getLinesNaive, one line at a time
+    public static int streamLinesNaive(String inputPath, LineSink sink) throws IOException {
+        int count = 0;
+        try (
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(inputPath), Charset.defaultCharset()));
+        ) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sink.line(line);
+                ++count;
+            }
+        } catch (FileNotFoundException e) {
+            // same as getLinesNaive: nothing to include
+        }
+        return count;
+    }
+
+    // writes lines out, applying '-f' folding (' -<', ' +<') to markdown on the fly
+    public static LineSink lineWriter(OutputStream os, boolean isMarkdownFile) {
+        return folding(lineWriter(os, Charset.defaultCharset()), isMarkdownFile);
+    }
+
+    public static LineSink lineWriter(final OutputStream os, final Charset charset) {
+        final byte[] newline = "\n".getBytes(charset);
+        return new LineSink() {
+            @Override
+            public void line(String line) throws IOException {
+                os.write(line.getBytes(charset));
+                os.write(newline);
+            }
+        };
+    }
+
+    public static LineSink folding(final LineSink downstream, boolean isMarkdownFile) {
+        if (!isMarkdownFile || !Config.foldMarkdown) {
+            return downstream;
+        }
+        return new LineSink() {
+            @Override
+            public void line(String line) throws IOException {
+                if (line.endsWith(" -<")) {
+                    downstream.line(line.substring(0, line.length() - 3) + " `@`{.fold}");
+                } else if (line.endsWith(" +<")) {
+                    downstream.line(line.substring(0, line.length() - 3) + " `@`{.foldable}");
+                } else {
+                    downstream.line(line);
+                }
+            }
+        };
     }
 
     public static void dump(List<String> lines, File outputFile) {
@@ -410,28 +956,12 @@ public class Utility {
     public static void dump(List<String> lines, File outputFile, boolean isMarkdownFile) {
         mkdirHyphenPDollarAtD(outputFile);
         try (
-            FileOutputStream fos = new FileOutputStream(outputFile);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
         ) {
-            if (isMarkdownFile && Config.foldMarkdown) {
-                // twist a little bit for each line
-                for (String line: lines) {
-                    if (line.endsWith(" -<")) {
-                        fos.write(line.substring(0, line.length() - 3).getBytes());
-                        fos.write(" `@`{.fold}".getBytes());
-                    } else if (line.endsWith(" +<")) {
-                        fos.write(line.substring(0, line.length() - 3).getBytes());
-                        fos.write(" `@`{.foldable}".getBytes());
-                    } else {
-                        fos.write(line.getBytes());
-                    }
-                    fos.write("\n".getBytes());
-                }
-            } else {
-                // if not markdown file, or not fold markdown, just write out
-                for (String line: lines) {
-                    fos.write(line.getBytes());
-                    fos.write("\n".getBytes());
-                }
+            // if not markdown file, or not fold markdown, lines are just written out
+            LineSink writer = lineWriter(os, isMarkdownFile);
+            for (String line: lines) {
+                writer.line(line);
             }
         }
         catch (IOException e) {
@@ -439,33 +969,32 @@ public class Utility {
         }
     }
 
-    public static void extractResourceFile(String resourcePath, String outputPath) {
-        File outputFile = new File(outputPath);
-        Utility.mkdirHyphenPDollarAtD(outputFile);
-        try (
-                InputStream is = Main.class.getResourceAsStream(resourcePath);
-                FileOutputStream fos = new FileOutputStream(outputFile);
-        ) {
-            if (is == null) { return; }
-            byte[] buf = new byte[1024];
-            int hasRead = 0;
-            while ((hasRead = is.read(buf)) > 0) {
-                fos.write(buf, 0, hasRead) ;
+    // leaves the file (and its mtime) alone if it already has these bytes; returns true if written.
+    // written next to it and moved over it: never through a link into someone else's file, and
+    // never half-written for a reader
+    public static boolean writeIfChanged(File file, byte[] bytes) {
+        File tmp = new File(file.getPath()+".tmp");
+        try {
+            if (file.isFile() && file.length() == bytes.length
+                    && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) {
+                return false;
             }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
+            mkdirHyphenPDollarAtD(file);
+            Files.write(tmp.toPath(), bytes);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            BuildManifest.invalidate(file.getPath());
+            return true;
+        } catch (IOException e) {
+            tmp.delete();
+            log("[X] %s: %s\n", file, e.getMessage());
+            return false;
         }
     }
 
     public static ArrayList<String> listing() {
         ArrayList<String> lines = new ArrayList<>();
-        Vector<String> files = Bundle.getFiles();
-        if (files.isEmpty()) {
-            return lines;
-        }
-        for (int i = 1; i < files.size(); ++i) {
-            lines.add(files.elementAt(i).substring(1+Bundle.srcDir.length()));
+        for (String file: Bundle.getFiles()) {
+            lines.add(file.substring(1+Bundle.srcDir.length()));
         }
         return lines;
     }
@@ -476,10 +1005,32 @@ class InclusionParams {
     public String pad;
     public String path;
     public LinkedHashSet<String> parents;
+    public LinkedHashMap<String, LinkedHashSet<String>> edges;
+    // everything read and logged during one expansion, append-only (ExpansionCache slices these)
+    public ArrayList<String> reads;
+    // every file read -> its content hash from right before it was read (the first time)
+    public HashMap<String, String> hashes;
+    public ArrayList<List<String>> logs;
+    public int loops;
     InclusionParams() {
         pad = "";
         path = "";
         parents = new LinkedHashSet<>();
+        edges = new LinkedHashMap<>();
+        reads = new ArrayList<>();
+        hashes = new HashMap<>();
+        logs = new ArrayList<>();
+        loops = 0;
+    }
+    public void read(String path, String hash) {
+        reads.add(path);
+        if (!hashes.containsKey(path)) {
+            hashes.put(path, hash);
+        }
+    }
+    public void log(ArrayList<String> inclusionInfo) {
+        logs.add(inclusionInfo);
+        Bundle.inclusionLogs.add(inclusionInfo);
     }
     public String getErrorLog(String filename) {
         StringBuilder sb = new StringBuilder();
@@ -502,3 +1053,47 @@ class InclusionParams {
         return log;
     }
 }
+
+interface LineSink {
+    void line(String line) throws IOException;
+}
+
+// passes lines on, counting them and (optionally, up to limit) keeping a copy
+class LineRecorder implements LineSink {
+    private final LineSink downstream;
+    private final int limit;
+    public ArrayList<String> recorded;
+    public int count;
+    LineRecorder(LineSink downstream, boolean record, int limit) {
+        this.downstream = downstream;
+        this.limit = limit;
+        this.recorded = record ? new ArrayList<String>() : null;
+        this.count = 0;
+    }
+    @Override
+    public void line(String line) throws IOException {
+        downstream.line(line);
+        ++count;
+        if (recorded != null) {
+            if (recorded.size() < limit) {
+                recorded.add(line);
+            } else {
+                recorded = null; // too big to cache
+            }
+        }
+    }
+}
+
+// indents included lines like the '@include' line itself
+class PrefixSink implements LineSink {
+    private final String pad;
+    private final LineSink downstream;
+    PrefixSink(String pad, LineSink downstream) {
+        this.pad = pad;
+        this.downstream = downstream;
+    }
+    @Override
+    public void line(String line) throws IOException {
+        downstream.line(pad.isEmpty() ? line : pad + line);
+    }
+}
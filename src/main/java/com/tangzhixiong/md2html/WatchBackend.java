@@ -0,0 +1,9 @@
+package com.tangzhixiong.md2html;
+
+// where watch mode learns about changes: '-watch-backend native|poll|hybrid'
+public interface WatchBackend {
+    String getName();
+
+    // reports changes until the source directory goes away (or forever)
+    void watch(TreeChanges changes) throws Exception;
+}
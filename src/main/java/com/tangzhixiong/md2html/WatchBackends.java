@@ -0,0 +1,37 @@
+package com.tangzhixiong.md2html;
+
+public class WatchBackends {
+    public static final WatchBackend nativeWatch = new NativeWatchBackend();
+    public static final WatchBackend poll = new PollWatchBackend(false);
+    public static final WatchBackend hybrid = new WatchBackend() {
+        @Override
+        public String getName() {
+            return "hybrid";
+        }
+
+        // native events where there are watch keys, polling for the directories without
+        @Override
+        public void watch(final TreeChanges changes) throws Exception {
+            Thread poller = new Thread("watch-poll") {
+                @Override
+                public void run() {
+                    try {
+                        new PollWatchBackend(true).watch(changes);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            poller.setDaemon(true);
+            poller.start();
+            nativeWatch.watch(changes);
+        }
+    };
+
+    public static WatchBackend get(String name) {
+        if (nativeWatch.getName().equals(name)) { return nativeWatch; }
+        if (poll.getName().equals(name)) { return poll; }
+        if (hybrid.getName().equals(name)) { return hybrid; }
+        return null;
+    }
+}
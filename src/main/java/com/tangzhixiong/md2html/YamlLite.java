@@ -0,0 +1,90 @@
+package com.tangzhixiong.md2html;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// just enough YAML for .md2html.yml and metadata blocks:
+//      key: value
+//      key:
+//        - item
+//      key: |
+//          literal block
+// nested mappings are not supported (and silently dropped).
+public class YamlLite {
+    public static LinkedHashMap<String, Object> parse(List<String> lines) {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+        String key = null;
+        ArrayList<Object> list = null;
+        StringBuilder block = null;
+        int blockIndent = -1;
+        for (String line: lines) {
+            String trimmed = line.trim();
+            if (trimmed.equals("---") || trimmed.equals("...")) {
+                continue;
+            }
+            int indent = indentOf(line);
+            if (block != null) {
+                if (trimmed.isEmpty() || indent > 0) {
+                    if (blockIndent < 0 && !trimmed.isEmpty()) { blockIndent = indent; }
+                    block.append(trimmed.isEmpty() ? "" : line.substring(Math.min(indent, blockIndent)));
+                    block.append("\n");
+                    continue;
+                }
+                map.put(key, block.toString());
+                block = null;
+            }
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            if (indent > 0 && key != null && trimmed.startsWith("-")) {
+                if (list == null) {
+                    list = new ArrayList<>();
+                    map.put(key, list);
+                }
+                list.add(scalar(trimmed.substring(1).trim()));
+                continue;
+            }
+            if (indent > 0) {
+                continue; // nested mapping, unsupported
+            }
+            int idx = line.indexOf(':');
+            if (idx <= 0) {
+                continue;
+            }
+            key = line.substring(0, idx).trim();
+            list = null;
+            String value = line.substring(idx+1).trim();
+            if (value.equals("|") || value.equals(">")) {
+                block = new StringBuilder();
+                blockIndent = -1;
+            } else if (value.isEmpty()) {
+                map.put(key, null);
+            } else {
+                map.put(key, scalar(value));
+            }
+        }
+        if (block != null) {
+            map.put(key, block.toString());
+        }
+        return map;
+    }
+
+    private static int indentOf(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) { ++i; }
+        return i;
+    }
+
+    private static Object scalar(String value) {
+        if (value.equals("true")) { return Boolean.TRUE; }
+        if (value.equals("false")) { return Boolean.FALSE; }
+        if (value.length() >= 2) {
+            char first = value.charAt(0), last = value.charAt(value.length()-1);
+            if ((first == '"' && last == '"') || (first == '\'' && last == '\'')) {
+                return value.substring(1, value.length()-1);
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,78 @@
+package com.tangzhixiong.md2html;
+
+import jdk.jfr.*;
+
+// BuildEvents through JDK Flight Recorder. this source set is only compiled on JDK 11+ (profile 'jfr'
+// in pom.xml), and the class only loaded if the running JVM has jdk.jfr.
+class JfrBuildEvents extends BuildEvents {
+    @Name("md2html.Phase")
+    @Label("Build Phase")
+    @Category("md2html")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Path")
+        String path;
+    }
+
+    @Name("md2html.File")
+    @Label("File Build")
+    @Category("md2html")
+    @StackTrace(false)
+    static class FileEvent extends Event {
+        @Label("Source")
+        String path;
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("md2html.Subprocess")
+    @Label("Subprocess")
+    @Category("md2html")
+    @StackTrace(false)
+    static class SubprocessEvent extends Event {
+        @Label("Command")
+        String command;
+    }
+
+    @Override
+    Object beginPhase(String phase, String path) {
+        PhaseEvent event = new PhaseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.phase = phase;
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    Object beginFile(String path) {
+        FileEvent event = new FileEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void end(Object event, String outcome) {
+        if (event instanceof FileEvent) {
+            ((FileEvent) event).outcome = outcome;
+        }
+        ((Event) event).commit();
+    }
+
+    @Override
+    void subprocess(String command) {
+        SubprocessEvent event = new SubprocessEvent();
+        if (event.isEnabled()) {
+            event.command = command;
+            event.commit();
+        }
+    }
+}
@@ -119,3 +119,106 @@ function loadIndex() {
     var url = metaJson.rootdir+'index.html';
     window.location = url;
 }
+
+// site listing, one json shard per directory under _md2html/nav, fetched on first use.
+// dir is relative to the root and ends with '/' ('' for the root), e.g. listDir('include/', f).
+var navShards = {};
+function listDir(dir, callback) {
+    if (typeof mh === 'undefined' || !mh.navIndex) { return; }
+    if (!navShards[dir]) {
+        navShards[dir] = $.getJSON(mh.navIndex+encodeURI(dir)+'index.json');
+    }
+    navShards[dir].done(callback);
+}
+
+// full-text search over the index md2html writes with '-search' (_md2html/search). only the meta,
+// the term shards the query needs and the doc blocks of the best hits are fetched (once each).
+// callback gets [{path, title, score}], best first, at most limit (default: 20) of them; paths are
+// relative to the current page. pages must have every term of the query; a term matches the index
+// terms it begins, so half a word (or a single chinese character) finds something too.
+var searchCache = {};
+function searchFetch(url) {
+    if (!searchCache[url]) {
+        // a shard that isn't there has no terms
+        searchCache[url] = $.getJSON(mh.searchIndex+url).then(function(data){ return data; },
+            function(){ return {}; });
+    }
+    return searchCache[url];
+}
+function searchIsCjk(c) {
+    return c >= 0x3040 && c <= 0x30ff || c >= 0x3400 && c <= 0x4dbf || c >= 0x4e00 && c <= 0x9fff
+        || c >= 0xac00 && c <= 0xd7af || c >= 0xf900 && c <= 0xfaff;
+}
+// cuts text like SearchIndex.terms: words of letters and digits, bigrams of cjk runs. the index also
+// has the last character of every run on its own, which a one-character query finds by prefix
+function searchTerms(text) {
+    var terms = [], word = '', cjk = '';
+    function flushWord() {
+        if (word.length >= 2 && word.length <= 32) { terms.push(word); }
+        word = '';
+    }
+    function flushCjk() {
+        if (cjk.length === 1) { terms.push(cjk); }
+        for (var k = 0; k+1 < cjk.length; ++k) { terms.push(cjk.substr(k, 2)); }
+        cjk = '';
+    }
+    text = text.toLowerCase();
+    for (var i = 0; i < text.length; ++i) {
+        var ch = text.charAt(i), c = text.charCodeAt(i);
+        if (c < 128 ? /[a-z0-9]/.test(ch) : !searchIsCjk(c) && ch.toLowerCase() !== ch.toUpperCase()) {
+            flushCjk();
+            word += ch;
+        } else if (searchIsCjk(c)) {
+            flushWord();
+            cjk += ch;
+        } else {
+            flushWord();
+            flushCjk();
+        }
+    }
+    flushWord();
+    flushCjk();
+    return terms;
+}
+function searchShardKey(term) {
+    var c = term.charCodeAt(0);
+    return c < 128 ? term.substr(0, 2) : 'u'+c.toString(16);
+}
+function search(query, callback, limit) {
+    if (typeof mh === 'undefined' || !mh.searchIndex) { return; }
+    var terms = searchTerms(query);
+    if (!terms.length) { callback([]); return; }
+    var fetches = [searchFetch('meta.json')];
+    $.each(terms, function(i, term){ fetches.push(searchFetch('terms/'+searchShardKey(term)+'.json')); });
+    $.when.apply($, fetches).done(function(meta) {
+        var shards = Array.prototype.slice.call(arguments, 1), scores = null;
+        $.each(terms, function(i, term) {
+            // tf-idf, summed over the index terms this one begins (a whole term counts double)
+            var hits = {};
+            $.each(shards[i], function(indexed, postings) {
+                if (indexed.lastIndexOf(term, 0) !== 0) { return; }
+                var idf = Math.log(1 + (meta.docs || 1) / (postings.length / 2));
+                for (var k = 0; k+1 < postings.length; k += 2) {
+                    hits[postings[k]] = (hits[postings[k]] || 0)
+                        + postings[k+1] * idf * (indexed === term ? 2 : 1);
+                }
+            });
+            if (scores === null) {
+                scores = hits;
+            } else {
+                $.each(scores, function(id){ if (!(id in hits)) { delete scores[id]; } else { scores[id] += hits[id]; } });
+            }
+        });
+        var ids = $.map(scores || {}, function(score, id){ return +id; });
+        ids.sort(function(a, b){ return scores[b] - scores[a]; });
+        ids = ids.slice(0, limit || 20);
+        var blocks = $.map(ids, function(id){ return searchFetch('docs/'+Math.floor(id / meta.block)+'.json'); });
+        $.when.apply($, blocks).done(function() {
+            var docs = arguments;
+            callback($.map(ids, function(id, i) {
+                var doc = docs[i][id % meta.block];
+                return doc ? {path: mh.rootdir+doc[0], title: doc[1], score: scores[id]} : null;
+            }));
+        });
+    });
+}